@@ -1,5 +1,22 @@
 
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Function;
+import java.util.function.IntToDoubleFunction;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import javax.management.*;
 
 class UserNotFoundException extends Exception {
     public UserNotFoundException(String message) {
@@ -14,26 +31,30 @@ class InvalidInputException extends Exception {
 }
 
 class User {
+    int id;
     String name;
-    Post posts;
+    Timeline posts;
     Set<User> followers;
     Set<User> follows;
-    int likes;
+    LongAdder likes;
+    volatile FeedCache feed;
+    volatile boolean celebrity;
 
-    public User(String name) {
+    public User(int id, String name) {
+        this.id = id;
         this.name = name;
-        this.posts = null;
-        this.followers = new HashSet<>();
-        this.follows = new HashSet<>();
-        this.likes = 0;
+        this.posts = new Timeline();
+        this.followers = ConcurrentHashMap.newKeySet();
+        this.follows = ConcurrentHashMap.newKeySet();
+        this.likes = new LongAdder();
     }
     
-    public void addFollower(User follower) {
-        followers.add(follower);
+    public boolean addFollower(User follower) {
+        return followers.add(follower);
     }
     
-    public void removeFollower(User follower) {
-        followers.remove(follower);
+    public boolean removeFollower(User follower) {
+        return followers.remove(follower);
     }
     
     public void addFollow(User user) {
@@ -49,17 +70,15 @@ class User {
     }
     
     public void addLike() {
-        likes++;
+        likes.increment();
     }
     
     public void removeLike() {
-        if (likes > 0) {
-            likes--;
-        }
+        likes.decrement();
     }
     
-    public int getLikes() {
-        return likes;
+    public long getLikes() {
+        return likes.sum();
     }
     
     public Set<User> getFollowers() {
@@ -72,493 +91,6371 @@ class User {
 }
 
 class Post {
+    long id;
+    User author;
     String post;
-    Post next;
+    long timestamp;
+    // Striped counter so a viral post takes concurrent likes without a single contended field
+    LongAdder likes;
+    volatile Set<User> likedBy;
 
-    public Post(String post) {
+    public Post(long id, User author, String post, long timestamp) {
+        this.id = id;
+        this.author = author;
         this.post = post;
-        this.next = null;
+        this.timestamp = timestamp;
+        this.likes = new LongAdder();
     }
-}
 
-class SocialNetwork2 {
-    Map<User, List<User>> adjacencyList;
+    // Returns false when the user had already liked this post
+    public boolean like(User user) {
+        if (!likers().add(user)) {
+            return false;
+        }
+        likes.increment();
+        author.addLike();
+        return true;
+    }
 
-    public SocialNetwork2() {
-        adjacencyList = new HashMap<>();
+    public boolean unlike(User user) {
+        Set<User> likers = likedBy;
+        if (likers == null || !likers.remove(user)) {
+            return false;
+        }
+        likes.decrement();
+        author.removeLike();
+        return true;
     }
 
-    public void addUser(String name) {
-        User user = new User(name);
-        adjacencyList.put(user, new ArrayList<>());
+    public boolean isLikedBy(User user) {
+        Set<User> likers = likedBy;
+        return likers != null && likers.contains(user);
     }
 
-    public void addFriend(String name1, String name2) throws UserNotFoundException {
-        User user1 = getUserByName(name1);
-        User user2 = getUserByName(name2);
-        if (user1 != null && user2 != null) {
-            adjacencyList.get(user1).add(user2);
-            adjacencyList.get(user2).add(user1);
-        } else {
-            throw new UserNotFoundException("Invalid user names. Friend not added.");
-        }
+    public long likeCount() {
+        return likes.sum();
     }
 
-    public void addPost(String name, String postContent) throws UserNotFoundException {
-        User user = getUserByName(name);
-        if (user != null) {
-            Post newPost = new Post(postContent);
-            if (user.posts == null) {
-                user.posts = newPost;
-            } else {
-                Post lastPost = user.posts;
-                while (lastPost.next != null) {
-                    lastPost = lastPost.next;
+    // Most posts are never liked, so the liker set is only allocated on the first like
+    private Set<User> likers() {
+        Set<User> likers = likedBy;
+        if (likers == null) {
+            synchronized (this) {
+                likers = likedBy;
+                if (likers == null) {
+                    likers = ConcurrentHashMap.newKeySet();
+                    likedBy = likers;
                 }
-                lastPost.next = newPost;
             }
-        } else {
-            throw new UserNotFoundException("User not found. Post not added.");
         }
+        return likers;
     }
+}
 
-    public void showPosts(String name) throws UserNotFoundException {
-        User user = getUserByName(name);
-        if (user != null) {
-            System.out.println("Posts by " + name + ":");
-            Post post = user.posts;
-            while (post != null) {
-                System.out.println(post.post);
-                post = post.next;
-            }
-        } else {
-            throw new UserNotFoundException("User not found.");
+class Timeline {
+    // Posts live in fixed-size chunks, so an append never copies earlier posts
+    static final int CHUNK_SIZE = 256;
+
+    // Single writer (the author's lock holder); the volatile size publishes each slot to lock-free readers
+    volatile Post[][] chunks;
+    volatile int size;
+
+    public Timeline() {
+        chunks = new Post[1][];
+    }
+
+    public void append(Post post) {
+        int index = size;
+        int chunk = index / CHUNK_SIZE;
+        Post[][] current = chunks;
+        if (chunk == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        if (current[chunk] == null) {
+            current[chunk] = new Post[CHUNK_SIZE];
         }
+        current[chunk][index % CHUNK_SIZE] = post;
+        chunks = current;
+        size = index + 1;
     }
 
-    public void showFriends(String name) throws UserNotFoundException {
-        User user = getUserByName(name);
-        if (user != null) {
-            Set<User> visited = new HashSet<>();
-            System.out.println("Direct friends of " + name + ":");
-            for (User friend : adjacencyList.get(user)) {
-                System.out.println(friend.name);
-            }
-        } else {
-            throw new UserNotFoundException("User not found.");
+    public Post get(int index) {
+        return chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Newest first, starting at index cursor (clamped to the newest post) and walking back in time
+    public PostPage page(int cursor, int limit) {
+        int index = Math.min(cursor, size() - 1);
+        List<Post> posts = new ArrayList<>(Math.max(0, Math.min(limit, index + 1)));
+        while (index >= 0 && posts.size() < limit) {
+            posts.add(get(index--));
         }
+        return new PostPage(posts, index);
     }
+}
 
-    public void showMutuals(String name1, String name2) throws UserNotFoundException {
-        User user1 = getUserByName(name1);
-        User user2 = getUserByName(name2);
-        if (user1 != null && user2 != null) {
-            bfs(user1, user2);
-        } else {
-            throw new UserNotFoundException("Invalid user names.");
+class PostPage {
+    // Pass START to read from the newest post; nextCursor is END once the timeline is exhausted
+    static final int START = Integer.MAX_VALUE;
+    static final int END = -1;
+
+    List<Post> posts;
+    int nextCursor;
+
+    public PostPage(List<Post> posts, int nextCursor) {
+        this.posts = posts;
+        this.nextCursor = nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != END;
+    }
+}
+
+class UserRegistry {
+    Map<String, User> usersByName;
+    // Grown by copy under the registry lock; readers see every user below the volatile size
+    volatile User[] usersById;
+    volatile int size;
+
+    public UserRegistry() {
+        usersByName = new ConcurrentHashMap<>();
+        usersById = new User[16];
+    }
+
+    // Assigns the next dense id, so ids always index straight into usersById
+    public synchronized User register(String name) throws InvalidInputException {
+        checkNewName(name);
+        int id = size;
+        User[] users = usersById;
+        if (id == users.length) {
+            users = Arrays.copyOf(users, users.length * 2);
         }
+        User user = new User(id, name);
+        users[id] = user;
+        usersById = users;
+        size = id + 1;
+        usersByName.put(name, user);
+        return user;
     }
-    
-    private void bfs(User source, User target) {
-        Queue<User> queue = new LinkedList<>();
-        Set<User> visited = new HashSet<>();
-        Map<User, User> parentMap = new HashMap<>();
-    
-        queue.offer(source);
-        visited.add(source);
-        parentMap.put(source, null);
-    
-        while (!queue.isEmpty()) {
-            User current = queue.poll();
-            if (current == target) {
-                break;
-            }
-            for (User neighbor : adjacencyList.get(current)) {
-                if (!visited.contains(neighbor)) {
-                    visited.add(neighbor);
-                    queue.offer(neighbor);
-                    parentMap.put(neighbor, current);
-                }
-            }
+
+    public synchronized void checkNewName(String name) throws InvalidInputException {
+        if (name == null || name.isEmpty()) {
+            throw new InvalidInputException("User name must not be empty.");
         }
-    
-        // Reconstruct path from target to source
-        User current = target;
-        Set<User> mutuals = new HashSet<>();
-        while (current != null) {
-            if (current != target && current != source) {
-                mutuals.add(current);
-            }
-            current = parentMap.get(current);
+        if (usersByName.containsKey(name)) {
+            throw new InvalidInputException("User " + name + " already exists.");
         }
-    
-        System.out.println("Mutual friends of " + source.name + " and " + target.name + ":");
-        for (User mutual : mutuals) {
-            System.out.println(mutual.name);
+    }
+
+    public User get(String name) {
+        return usersByName.get(name);
+    }
+
+    public User get(int id) {
+        return usersById[id];
+    }
+
+    public boolean contains(String name) {
+        return usersByName.containsKey(name);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<User> users() {
+        int count = size;
+        return Arrays.asList(usersById).subList(0, count);
+    }
+}
+
+class StripedLocks {
+    final ReentrantLock[] stripes;
+
+    public StripedLocks(int stripeCount) {
+        stripes = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
         }
     }
-    
-    public void removeFriend(String name1, String name2) throws UserNotFoundException {
-        User user1 = getUserByName(name1);
-        User user2 = getUserByName(name2);
-        if (user1 != null && user2 != null) {
-            adjacencyList.get(user1).remove(user2);
-            adjacencyList.get(user2).remove(user1);
-        } else {
-            throw new UserNotFoundException("Invalid user names. Friend not removed.");
+
+    private int stripe(User user) {
+        return user.id & (stripes.length - 1);
+    }
+
+    public void lock(User user) {
+        stripes[stripe(user)].lock();
+    }
+
+    public void unlock(User user) {
+        stripes[stripe(user)].unlock();
+    }
+
+    // Two-user writes always take the lower stripe first, so crossing edges can't deadlock
+    public void lock(User user1, User user2) {
+        int first = Math.min(stripe(user1), stripe(user2));
+        int second = Math.max(stripe(user1), stripe(user2));
+        stripes[first].lock();
+        if (second != first) {
+            stripes[second].lock();
         }
     }
 
-    private User getUserByName(String name) {
-        for (User user : adjacencyList.keySet()) {
-            if (user.name.equals(name)) {
-                return user;
-            }
+    public void unlock(User user1, User user2) {
+        int first = Math.min(stripe(user1), stripe(user2));
+        int second = Math.max(stripe(user1), stripe(user2));
+        if (second != first) {
+            stripes[second].unlock();
         }
-        return null;
+        stripes[first].unlock();
     }
 
-    public void suggestFriendsCommonNeighbor(String name) throws UserNotFoundException {
-        User user = getUserByName(name);
+    // Stops every writer, e.g. to take a consistent snapshot; same ascending order as the pair locks
+    public void lockAll() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}
+
+// Users whose graph row changed since the last snapshot took them. Each user is queued at most once until it is
+// polled, so the queue stays bounded by the number of users however many writes land between two snapshots
+class ChangeQueue {
+    final IntCounters queued = new IntCounters();
+    final ConcurrentLinkedQueue<User> users = new ConcurrentLinkedQueue<>();
+
+    public void add(User user) {
+        queued.ensureCapacity(user.id + 1);
+        if (queued.compareAndSet(user.id, 0, 1)) {
+            users.add(user);
+        }
+    }
+
+    // Unmarks the user before handing it out, so a write that lands after the caller reads its row queues it again
+    public User poll() {
+        User user = users.poll();
         if (user != null) {
-            Map<User, Integer> commonNeighbors = new HashMap<>();
-            for (User friend : adjacencyList.get(user)) {
-                for (User mutual : adjacencyList.get(friend)) {
-                    if (!adjacencyList.get(user).contains(mutual) && !mutual.equals(user)) {
-                        commonNeighbors.put(mutual, commonNeighbors.getOrDefault(mutual, 0) + 1);
-                    }
-                }
-            }
+            queued.set(user.id, 0);
+        }
+        return user;
+    }
+
+    // Walks the queue, so it costs about as much as draining it
+    public int size() {
+        return users.size();
+    }
+
+    public void clear() {
+        while (poll() != null) {
+        }
+    }
+}
+
+class CSRGraph {
+    // Beyond this degree skew, probing the larger row beats walking it
+    static final int GALLOP_RATIO = 32;
+    // Rows replaced since the flat arrays were built sit in copy-on-write chunks of this many row pointers,
+    // so a new version copies only the chunks its changed rows fall in
+    static final int ROW_CHUNK_BITS = 10;
+    static final int ROW_CHUNK = 1 << ROW_CHUNK_BITS;
+    static final int[] EMPTY_ROW = new int[0];
+
+    // Row u of the graph is neighbors[offsets[u] .. offsets[u + 1]), sorted ascending, unless the overlay holds a
+    // replacement row for u; users past the flat arrays without one have no friends. Code that indexes offsets and
+    // neighbors directly needs a flat graph (no overlay, see compact()); everything else goes through row(u)
+    final int[] offsets;
+    final int[] neighbors;
+    final int[][][] overlay;
+    final int nodeCount;
+    final int edgeCount;
+    final int overlayRows;
+    long version;
 
-            List<Map.Entry<User, Integer>> sortedCommonNeighbors = new ArrayList<>(commonNeighbors.entrySet());
-            sortedCommonNeighbors.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
+    public CSRGraph(int[] offsets, int[] neighbors) {
+        this(offsets, neighbors, null, offsets.length - 1, neighbors.length, 0);
+    }
+
+    private CSRGraph(int[] offsets, int[] neighbors, int[][][] overlay, int nodeCount, int edgeCount, int overlayRows) {
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.overlay = overlay;
+        this.nodeCount = nodeCount;
+        this.edgeCount = edgeCount;
+        this.overlayRows = overlayRows;
+    }
 
-            System.out.println("Suggestions for " + name + " using Common Neighbor Algorithm:");
-            for (Map.Entry<User, Integer> entry : sortedCommonNeighbors) {
-                System.out.println(entry.getKey().name + " (Mutual friends: " + entry.getValue() + ")");
+    public static CSRGraph fromRows(UserRegistry registry, Function<User, ? extends Collection<User>> rows) {
+        // Rows may change while we copy them, so size the buffer per row and skip users added mid-build
+        int nodeCount = registry.size();
+        int[] offsets = new int[nodeCount + 1];
+        int[] neighbors = new int[16];
+        int size = 0;
+        for (int u = 0; u < nodeCount; u++) {
+            int rowStart = size;
+            for (User neighbor : rows.apply(registry.get(u))) {
+                if (neighbor.id >= nodeCount) {
+                    continue;
+                }
+                if (size == neighbors.length) {
+                    neighbors = Arrays.copyOf(neighbors, size * 2);
+                }
+                neighbors[size++] = neighbor.id;
             }
-        } else {
-            throw new UserNotFoundException("User not found.");
+            // Sort the row and drop duplicate friendships so rows can be binary searched and intersected
+            Arrays.sort(neighbors, rowStart, size);
+            int write = rowStart;
+            for (int i = rowStart; i < size; i++) {
+                if (write == rowStart || neighbors[write - 1] != neighbors[i]) {
+                    neighbors[write++] = neighbors[i];
+                }
+            }
+            size = write;
+            offsets[u + 1] = size;
         }
+        return new CSRGraph(offsets, size == neighbors.length ? neighbors : Arrays.copyOf(neighbors, size));
     }
-    
-    
-    public void showUserDetails(String name) throws UserNotFoundException {
-        User user = getUserByName(name);
-        if (user != null) {
-            System.out.println("User Details for " + name + ":");
-            System.out.println("Name: " + user.name);
-            System.out.println("Posts:");
-            Post post = user.posts;
-            while (post != null) {
-                System.out.println(post.post);
-                post = post.next;
+
+    // The next version of this graph, sized to the registry: the rows of the users drained from changed are
+    // re-read through rows (which must return sets), every other row and untouched chunk is shared with this one,
+    // so the cost follows the size of the change rather than the graph. Only the users queued when the build
+    // starts are drained; writers queue users meanwhile, and draining those too would never end under a steady
+    // stream of writes. Users the registry didn't hold yet when the build started, or whose rows name such users,
+    // go back into changed for the next version
+    public CSRGraph withChangedRows(UserRegistry registry, Function<User, ? extends Collection<User>> rows, ChangeQueue changed) {
+        int n = Math.max(nodeCount, registry.size());
+        int[][][] chunks = overlay == null ? new int[chunkCount(n)][][] : Arrays.copyOf(overlay, chunkCount(n));
+        boolean[] copied = new boolean[chunks.length];
+        boolean replaced = false;
+        int replacedRows = overlayRows;
+        int edges = edgeCount;
+        int[] buffer = new int[16];
+        List<User> retry = new ArrayList<>();
+        User user;
+        nextUser:
+        for (int pending = changed.size(); pending > 0 && (user = changed.poll()) != null; pending--) {
+            int u = user.id;
+            if (u >= n) {
+                retry.add(user);
+                continue;
             }
-            System.out.println("Followers:");
-            for (User follower : user.followers) {
-                System.out.println(follower.name);
+            int size = 0;
+            for (User neighbor : rows.apply(user)) {
+                if (neighbor.id >= n) {
+                    retry.add(user);
+                    continue nextUser;
+                }
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, size * 2);
+                }
+                buffer[size++] = neighbor.id;
             }
-            System.out.println("Follows:");
-            for (User followed : user.follows) {
-                System.out.println(followed.name);
+            Arrays.sort(buffer, 0, size);
+            int chunk = u >>> ROW_CHUNK_BITS;
+            if (!copied[chunk]) {
+                chunks[chunk] = chunks[chunk] == null ? new int[ROW_CHUNK][] : chunks[chunk].clone();
+                copied[chunk] = true;
             }
-            System.out.println("Likes: " + user.likes);
-        } else {
-            throw new UserNotFoundException("User not found.");
+            // The slot may already hold this build's row when a write queued the user again meanwhile
+            int[][] slots = chunks[chunk];
+            int[] previous = slots[u & (ROW_CHUNK - 1)];
+            if (previous == null) {
+                replacedRows++;
+                edges -= u < offsets.length - 1 ? offsets[u + 1] - offsets[u] : 0;
+            } else {
+                edges -= previous.length;
+            }
+            edges += size;
+            slots[u & (ROW_CHUNK - 1)] = size == 0 ? EMPTY_ROW : Arrays.copyOf(buffer, size);
+            replaced = true;
         }
-    }
-    
-    public void likePost(String likerName, String postOwnerName) throws UserNotFoundException {
-        User liker = getUserByName(likerName);
-        User postOwner = getUserByName(postOwnerName);
-        if (liker != null && postOwner != null) {
-            postOwner.addLike();
-            System.out.println(likerName + " liked " + postOwnerName + "'s post.");
-        } else {
-            throw new UserNotFoundException("Invalid user names.");
+        for (User again : retry) {
+            changed.add(again);
         }
+        if (!replaced && n == nodeCount) {
+            // Nothing to re-read (e.g. the version moved for a write already folded in): share everything, so a
+            // flat graph stays flat
+            return new CSRGraph(offsets, neighbors, overlay, nodeCount, edgeCount, overlayRows);
+        }
+        return new CSRGraph(offsets, neighbors, chunks, n, edges, replacedRows);
     }
-    
-    public void followUser(String followerName, String followedName) throws UserNotFoundException {
-        User follower = getUserByName(followerName);
-        User followed = getUserByName(followedName);
-        if (follower != null && followed != null) {
-            follower.addFollow(followed);
-            followed.addFollower(follower);
-            System.out.println(followerName + " started following " + followedName + ".");
-        } else {
-            throw new UserNotFoundException("Invalid user names.");
+
+    // A flat copy with every replacement row folded in; this graph itself when it is already flat
+    public CSRGraph compact() {
+        if (overlay == null) {
+            return this;
+        }
+        int[] flatOffsets = new int[nodeCount + 1];
+        int[] flatNeighbors = new int[edgeCount];
+        int size = 0;
+        for (int u = 0; u < nodeCount; u++) {
+            int from = start(u);
+            int degree = end(u) - from;
+            System.arraycopy(row(u), from, flatNeighbors, size, degree);
+            size += degree;
+            flatOffsets[u + 1] = size;
         }
+        CSRGraph flat = new CSRGraph(flatOffsets, flatNeighbors);
+        flat.version = version;
+        return flat;
     }
-    
-    public void unfollowUser(String followerName, String followedName) throws UserNotFoundException {
-        User follower = getUserByName(followerName);
-        User followed = getUserByName(followedName);
-        if (follower != null && followed != null) {
-            follower.removeFollow(followed);
-            followed.removeFollower(follower);
-            System.out.println(followerName + " unfollowed " + followedName + ".");
-        } else {
-            throw new UserNotFoundException("Invalid user names.");
+
+    // This version's rows over the flat arrays of compacted, a compaction of the older version from: rows replaced
+    // since from stay in the overlay, all others now come from the flat arrays. Null when from doesn't share this
+    // graph's flat arrays, i.e. another compaction was installed in between
+    public CSRGraph rebase(CSRGraph from, CSRGraph compacted) {
+        if (from.offsets != offsets || from.overlay == null) {
+            return from.offsets == offsets ? this : null;
+        }
+        int[][][] chunks = new int[overlay.length][][];
+        int kept = 0;
+        int edges = compacted.edgeCount;
+        for (int chunk = 0; chunk < overlay.length; chunk++) {
+            int[][] slots = overlay[chunk];
+            int[][] compactedSlots = chunk < from.overlay.length ? from.overlay[chunk] : null;
+            if (slots == null || slots == compactedSlots) {
+                continue;
+            }
+            for (int i = 0; i < ROW_CHUNK; i++) {
+                if (slots[i] == null || (compactedSlots != null && compactedSlots[i] == slots[i])) {
+                    continue;
+                }
+                int u = (chunk << ROW_CHUNK_BITS) + i;
+                if (chunks[chunk] == null) {
+                    chunks[chunk] = new int[ROW_CHUNK][];
+                }
+                chunks[chunk][i] = slots[i];
+                kept++;
+                edges += slots[i].length - (u < compacted.nodeCount ? compacted.degree(u) : 0);
+            }
         }
+        // Stays an overlay graph while it has users past the compacted arrays, so flat always means complete
+        boolean flat = kept == 0 && nodeCount == compacted.nodeCount;
+        CSRGraph rebased = new CSRGraph(compacted.offsets, compacted.neighbors, flat ? null : chunks, nodeCount, edges, kept);
+        rebased.version = version;
+        return rebased;
     }
 
-    public Map<String, Double> calculateDegreeCentrality() {
-        Map<String, Double> degreeCentrality = new HashMap<>();
-        int totalUsers = adjacencyList.size();
+    private static int chunkCount(int n) {
+        return (n + ROW_CHUNK - 1) >>> ROW_CHUNK_BITS;
+    }
+
+    public boolean isFlat() {
+        return overlay == null;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public int edgeCount() {
+        return edgeCount;
+    }
+
+    // Row u is row(u)[start(u) .. end(u))
+    public int[] row(int u) {
+        int[] replaced = replaced(u);
+        return replaced != null ? replaced : u < offsets.length - 1 ? neighbors : EMPTY_ROW;
+    }
+
+    public int start(int u) {
+        return replaced(u) != null || u >= offsets.length - 1 ? 0 : offsets[u];
+    }
+
+    public int end(int u) {
+        int[] replaced = replaced(u);
+        return replaced != null ? replaced.length : u < offsets.length - 1 ? offsets[u + 1] : 0;
+    }
 
-        for (User user : adjacencyList.keySet()) {
-            int degree = adjacencyList.get(user).size();
-            degreeCentrality.put(user.name, (double) degree / (totalUsers - 1));
+    public int degree(int u) {
+        int[] replaced = replaced(u);
+        return replaced != null ? replaced.length : u < offsets.length - 1 ? offsets[u + 1] - offsets[u] : 0;
+    }
+
+    // Users past nodeCount fall through to an empty row, so row accessors are safe for any registered user
+    private int[] replaced(int u) {
+        if (overlay == null || u >= nodeCount) {
+            return null;
         }
+        int[][] slots = overlay[u >>> ROW_CHUNK_BITS];
+        return slots == null ? null : slots[u & (ROW_CHUNK - 1)];
+    }
 
-        return degreeCentrality;
+    public boolean hasEdge(int u, int v) {
+        return Arrays.binarySearch(row(u), start(u), end(u), v) >= 0;
     }
 
-    public Map<String, Double> calculateEigenvectorCentrality() {
-        Map<String, Double> eigenvectorCentrality = new HashMap<>();
-        int maxIterations = 100;
-        double tolerance = 1e-6;
+    public int intersectionCount(int u, int v) {
+        return intersect(u, v, null);
+    }
 
-        // Initialize centrality scores with equal values
-        for (User user : adjacencyList.keySet()) {
-            eigenvectorCentrality.put(user.name, 1.0);
+    // Writes the ids present in both rows into out (ascending) when out is non-null; returns how many there are.
+    // Users past nodeCount (registered after this version was taken) have empty rows
+    public int intersect(int u, int v, int[] out) {
+        if (u >= nodeCount || v >= nodeCount) {
+            return 0;
         }
+        if (degree(u) > degree(v)) {
+            int swap = u;
+            u = v;
+            v = swap;
+        }
+        int[] a = row(u);
+        int aFrom = start(u);
+        int aTo = end(u);
+        int[] b = row(v);
+        int bFrom = start(v);
+        int bTo = end(v);
+        int small = aTo - aFrom;
+        int large = bTo - bFrom;
+        if (small == 0) {
+            return 0;
+        }
+        return (long) small * GALLOP_RATIO < large
+                ? gallopIntersect(a, aFrom, aTo, b, bFrom, bTo, out)
+                : mergeIntersect(a, aFrom, aTo, b, bFrom, bTo, out);
+    }
 
-        for (int i = 0; i < maxIterations; i++) {
-            Map<String, Double> newCentrality = new HashMap<>();
-            double sumOfSquares = 0;
+    private static int mergeIntersect(int[] aRow, int i, int aTo, int[] bRow, int j, int bTo, int[] out) {
+        int count = 0;
+        while (i < aTo && j < bTo) {
+            int a = aRow[i];
+            int b = bRow[j];
+            if (a < b) {
+                i++;
+            } else if (a > b) {
+                j++;
+            } else {
+                if (out != null) {
+                    out[count] = a;
+                }
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
 
-            for (User user : adjacencyList.keySet()) {
-                double score = 0;
-                for (User neighbor : adjacencyList.get(user)) {
-                    score += eigenvectorCentrality.get(neighbor.name);
+    private static int gallopIntersect(int[] aRow, int i, int aTo, int[] bRow, int j, int bTo, int[] out) {
+        int count = 0;
+        for (; i < aTo && j < bTo; i++) {
+            int value = aRow[i];
+            // Exponential probe from j, then binary search inside the bracket it finds
+            int step = 1;
+            int low = j;
+            int high = j;
+            while (high < bTo && bRow[high] < value) {
+                low = high + 1;
+                high = j + step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(bRow, low, Math.min(high + 1, bTo), value);
+            if (found >= 0) {
+                if (out != null) {
+                    out[count] = value;
                 }
-                newCentrality.put(user.name, score);
-                sumOfSquares += score * score;
+                count++;
+                j = found + 1;
+            } else {
+                j = -found - 1;
             }
+        }
+        return count;
+    }
 
-            // Normalize scores
-            double maxDifference = 0;
-            for (String userName : newCentrality.keySet()) {
-                newCentrality.put(userName, newCentrality.get(userName) / Math.sqrt(sumOfSquares));
-                maxDifference = Math.max(maxDifference,
-                        Math.abs(eigenvectorCentrality.get(userName) - newCentrality.get(userName)));
+    // Splits the node range into parts carrying roughly equal nodes + edges, so hubs don't stall one worker.
+    // Reads offsets directly, so only for flat graphs like the rest of the whole-graph passes
+    public int[] balancedBounds(int parts) {
+        int n = nodeCount();
+        parts = Math.max(1, Math.min(parts, n));
+        int[] bounds = new int[parts + 1];
+        long total = (long) n + neighbors.length;
+        int u = 0;
+        for (int part = 1; part < parts; part++) {
+            long goal = total * part / parts;
+            while (u < n && (long) u + offsets[u] < goal) {
+                u++;
             }
+            bounds[part] = u;
+        }
+        bounds[parts] = n;
+        return bounds;
+    }
+}
 
-            // Update centrality and check for convergence
-            boolean converged = maxDifference < tolerance;
-            eigenvectorCentrality = newCentrality;
+class ParallelRange {
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
 
-            if (converged) {
-                break;
+    interface RangeBody {
+        void run(int chunk, int from, int to);
+    }
+
+    // Runs body over each [bounds[i], bounds[i + 1]) on the pool and waits for all of them
+    public static void forEachChunk(ForkJoinPool pool, int[] bounds, RangeBody body) {
+        int chunks = bounds.length - 1;
+        if (pool == null || chunks == 1) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                body.run(chunk, bounds[chunk], bounds[chunk + 1]);
             }
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int index = chunk;
+            tasks.add(pool.submit(() -> body.run(index, bounds[index], bounds[index + 1])));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
         }
+    }
 
-        return eigenvectorCentrality;
+    public static int[] evenBounds(int n, int parts) {
+        parts = Math.max(1, Math.min(parts, n));
+        int[] bounds = new int[parts + 1];
+        for (int part = 0; part <= parts; part++) {
+            bounds[part] = (int) ((long) n * part / parts);
+        }
+        return bounds;
     }
 
+    // The pool every parallel computation asking for this many threads shares, started on first use;
+    // null when only one thread is wanted, so the work runs inline on the caller
+    public static ForkJoinPool pool(int threads) {
+        if (threads <= 1) {
+            return null;
+        }
+        return POOLS.computeIfAbsent(threads, ForkJoinPool::new);
+    }
+}
 
+class EigenvectorCentrality {
+    // More chunks than threads lets the work-stealing pool even out skewed rows
+    static final int CHUNKS_PER_THREAD = 4;
 
-    
+    int maxIterations;
+    double tolerance;
+    int threads;
+    int iterations;
 
-    public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        SocialNetwork2 socialNetwork = new SocialNetwork2();
-        int choice;
-        int choice1;
-        String name1, name2, postContent;
-        while (true) {
-            System.out.println("=============================================");
-            System.out.println("1. Add user");
-            System.out.println("2. Add friend");
+    public EigenvectorCentrality(int maxIterations, double tolerance, int threads) {
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.threads = Math.max(1, threads);
+    }
+
+    public double[] compute(CSRGraph graph) {
+        return compute(graph, null);
+    }
+
+    // Starts from initial when given (e.g. the previous result). Users past its end start at its mean, so
+    // they sit on the same scale as the converged entries, and the whole vector is renormalised before sweeping
+    public double[] compute(CSRGraph graph, double[] initial) {
+        int n = graph.nodeCount();
+        // Initialize centrality scores with equal values
+        double[] scores = new double[n];
+        double[] next = new double[n];
+        Arrays.fill(scores, 1.0);
+        if (initial != null && n > 0) {
+            int copied = Math.min(n, initial.length);
+            System.arraycopy(initial, 0, scores, 0, copied);
+            double sum = 0;
+            for (int u = 0; u < copied; u++) {
+                sum += scores[u];
+            }
+            double seed = copied > 0 && sum > 0 ? sum / copied : 1 / Math.sqrt(n);
+            Arrays.fill(scores, copied, n, seed);
+            double sumOfSquares = 0;
+            for (double score : scores) {
+                sumOfSquares += score * score;
+            }
+            if (sumOfSquares == 0) {
+                // A previous all-zero result (no edges back then) would keep every sweep at zero
+                Arrays.fill(scores, 1.0);
+            } else {
+                double norm = Math.sqrt(sumOfSquares);
+                for (int u = 0; u < n; u++) {
+                    scores[u] /= norm;
+                }
+            }
+        }
+        iterations = 0;
+        if (n == 0) {
+            return scores;
+        }
+
+        int[] bounds = graph.balancedBounds(threads == 1 ? 1 : threads * CHUNKS_PER_THREAD);
+        double[] partialSquares = new double[bounds.length - 1];
+        double[] partialDifference = new double[bounds.length - 1];
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        while (iterations < maxIterations) {
+            double[] current = scores;
+            double[] target = next;
+            ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+                double sumOfSquares = 0;
+                for (int u = from; u < to; u++) {
+                    double score = 0;
+                    for (int i = graph.offsets[u]; i < graph.offsets[u + 1]; i++) {
+                        score += current[graph.neighbors[i]];
+                    }
+                    target[u] = score;
+                    sumOfSquares += score * score;
+                }
+                partialSquares[chunk] = sumOfSquares;
+            });
+            iterations++;
+
+            double sumOfSquares = 0;
+            for (double partial : partialSquares) {
+                sumOfSquares += partial;
+            }
+            if (sumOfSquares == 0) {
+                // No edges at all: every score collapses to zero, nothing left to converge
+                Arrays.fill(next, 0);
+                return next;
+            }
+
+            // Normalize scores
+            double norm = Math.sqrt(sumOfSquares);
+            ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+                double maxDifference = 0;
+                for (int u = from; u < to; u++) {
+                    target[u] /= norm;
+                    maxDifference = Math.max(maxDifference, Math.abs(current[u] - target[u]));
+                }
+                partialDifference[chunk] = maxDifference;
+            });
+
+            // Swap buffers and check for convergence
+            scores = target;
+            next = current;
+            double maxDifference = 0;
+            for (double partial : partialDifference) {
+                maxDifference = Math.max(maxDifference, partial);
+            }
+            if (maxDifference < tolerance) {
+                break;
+            }
+        }
+        return scores;
+    }
+}
+
+class PathFinder {
+    CSRGraph graph;
+    // A node counts as visited by a side only while its stamp equals the current query's stamp,
+    // so the arrays never need clearing between queries
+    int[] forwardStamp = new int[0];
+    int[] backwardStamp = new int[0];
+    int[] forwardParent = new int[0];
+    int[] backwardParent = new int[0];
+    int[] forwardDepth = new int[0];
+    int[] backwardDepth = new int[0];
+    int[] forwardQueue = new int[0];
+    int[] backwardQueue = new int[0];
+    int stamp;
+    int lastVisited;
+
+    public PathFinder(CSRGraph graph) {
+        use(graph);
+    }
+
+    // Points the finder at another snapshot. The scratch outlives snapshots and only grows, with headroom,
+    // when the graph has more users than it was sized for; stamps carry over, so it still needs no clearing
+    public PathFinder use(CSRGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        if (n > forwardStamp.length) {
+            int size = Math.max(n, forwardStamp.length + (forwardStamp.length >> 1));
+            forwardStamp = Arrays.copyOf(forwardStamp, size);
+            backwardStamp = Arrays.copyOf(backwardStamp, size);
+            forwardParent = new int[size];
+            backwardParent = new int[size];
+            forwardDepth = new int[size];
+            backwardDepth = new int[size];
+            forwardQueue = new int[size];
+            backwardQueue = new int[size];
+        }
+        return this;
+    }
+
+    public int distance(int source, int target, int maxDepth) {
+        int[] path = shortestPath(source, target, maxDepth);
+        return path == null ? -1 : path.length - 1;
+    }
+
+    // Returns source .. target inclusive, or null when target is unreachable within maxDepth hops
+    public int[] shortestPath(int source, int target, int maxDepth) {
+        if (source == target) {
+            return new int[] {source};
+        }
+        // A user registered after this snapshot was taken has no friendships in it yet
+        if (source >= graph.nodeCount() || target >= graph.nodeCount()) {
+            lastVisited = 1;
+            return null;
+        }
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(forwardStamp, 0);
+            Arrays.fill(backwardStamp, 0);
+            stamp = 1;
+        }
+        forwardStamp[source] = stamp;
+        forwardParent[source] = -1;
+        forwardDepth[source] = 0;
+        backwardStamp[target] = stamp;
+        backwardParent[target] = -1;
+        backwardDepth[target] = 0;
+        forwardQueue[0] = source;
+        backwardQueue[0] = target;
+        int forwardHead = 0;
+        int forwardTail = 1;
+        int backwardHead = 0;
+        int backwardTail = 1;
+        int forwardLevel = 0;
+        int backwardLevel = 0;
+        lastVisited = 2;
+
+        while (forwardHead < forwardTail && backwardHead < backwardTail && forwardLevel + backwardLevel < maxDepth) {
+            // Expand one whole level on the side with the smaller frontier
+            boolean forward = forwardTail - forwardHead <= backwardTail - backwardHead;
+            int[] queue = forward ? forwardQueue : backwardQueue;
+            int[] ownStamp = forward ? forwardStamp : backwardStamp;
+            int[] ownParent = forward ? forwardParent : backwardParent;
+            int[] ownDepth = forward ? forwardDepth : backwardDepth;
+            int[] otherStamp = forward ? backwardStamp : forwardStamp;
+            int[] otherDepth = forward ? backwardDepth : forwardDepth;
+            int head = forward ? forwardHead : backwardHead;
+            int tail = forward ? forwardTail : backwardTail;
+            int levelEnd = tail;
+            int meetFrom = -1;
+            int meetAt = -1;
+            int bestOtherDepth = Integer.MAX_VALUE;
+
+            while (head < levelEnd) {
+                int current = queue[head++];
+                int[] row = graph.row(current);
+                int rowEnd = graph.end(current);
+                for (int i = graph.start(current); i < rowEnd; i++) {
+                    int neighbor = row[i];
+                    if (otherStamp[neighbor] == stamp && otherDepth[neighbor] < bestOtherDepth) {
+                        meetFrom = current;
+                        meetAt = neighbor;
+                        bestOtherDepth = otherDepth[neighbor];
+                    }
+                    if (ownStamp[neighbor] != stamp) {
+                        ownStamp[neighbor] = stamp;
+                        ownParent[neighbor] = current;
+                        ownDepth[neighbor] = ownDepth[current] + 1;
+                        queue[tail++] = neighbor;
+                    }
+                }
+            }
+            lastVisited += tail - levelEnd;
+
+            if (meetAt != -1) {
+                return forward ? buildPath(meetFrom, meetAt) : buildPath(meetAt, meetFrom);
+            }
+            if (forward) {
+                forwardHead = head;
+                forwardTail = tail;
+                forwardLevel++;
+            } else {
+                backwardHead = head;
+                backwardTail = tail;
+                backwardLevel++;
+            }
+        }
+        return null;
+    }
+
+    // Joins the forward chain ending at left with the backward chain starting at right
+    private int[] buildPath(int left, int right) {
+        int length = forwardDepth[left] + 1 + backwardDepth[right] + 1;
+        int[] path = new int[length];
+        int index = forwardDepth[left];
+        for (int node = left; node != -1; node = forwardParent[node]) {
+            path[index--] = node;
+        }
+        index = forwardDepth[left] + 1;
+        for (int node = right; node != -1; node = backwardParent[node]) {
+            path[index++] = node;
+        }
+        return path;
+    }
+}
+
+enum LinkScorer {
+    COMMON_NEIGHBORS,
+    ADAMIC_ADAR,
+    JACCARD,
+    RESOURCE_ALLOCATION
+}
+
+class Recommendation {
+    int userId;
+    String name;
+    double score;
+    int mutualFriends;
+
+    public Recommendation(int userId, String name, double score, int mutualFriends) {
+        this.userId = userId;
+        this.name = name;
+        this.score = score;
+        this.mutualFriends = mutualFriends;
+    }
+}
+
+class TopKHeap {
+    // Fewer ids than this per chunk aren't worth a pool thread
+    static final int SELECT_CHUNK = 1 << 16;
+
+    // Min-heap on score whose root is the weakest entry kept; ties keep the smaller id
+    int[] ids;
+    double[] scores;
+    int size;
+
+    public TopKHeap(int capacity) {
+        ids = new int[capacity];
+        scores = new double[capacity];
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean offer(int id, double score) {
+        if (ids.length == 0) {
+            return false;
+        }
+        if (size < ids.length) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!weaker(ids[0], scores[0], id, score)) {
+            return false;
+        }
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    // Parallel partial selection over ids [0, n): each chunk fills its own heap and the chunk winners are merged,
+    // so nothing of size n is allocated or sorted. The result is already sorted best first
+    public static TopKHeap select(int n, int k, int threads, IntToDoubleFunction score) {
+        int parts = Math.max(1, Math.min(threads, n / SELECT_CHUNK));
+        int[] bounds = ParallelRange.evenBounds(n, parts);
+        TopKHeap[] partial = new TopKHeap[bounds.length - 1];
+        ForkJoinPool pool = ParallelRange.pool(partial.length);
+        ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+            TopKHeap heap = new TopKHeap(k);
+            for (int id = from; id < to; id++) {
+                heap.offer(id, score.applyAsDouble(id));
+            }
+            partial[chunk] = heap;
+        });
+        TopKHeap merged = partial.length == 1 ? partial[0] : new TopKHeap(k);
+        if (partial.length > 1) {
+            for (TopKHeap heap : partial) {
+                for (int i = 0; i < heap.size; i++) {
+                    merged.offer(heap.ids[i], heap.scores[i]);
+                }
+            }
+        }
+        merged.sortDescending();
+        return merged;
+    }
+
+    // Heap-sorts in place so ids[0 .. size) run from best to worst; the heap is unusable until clear()
+    public void sortDescending() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private static boolean weaker(int id1, double score1, int id2, double score2) {
+        return score1 < score2 || (score1 == score2 && id1 > id2);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!weaker(ids[index], scores[index], ids[parent], scores[parent])) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int limit) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= limit) {
+                break;
+            }
+            if (child + 1 < limit && weaker(ids[child + 1], scores[child + 1], ids[child], scores[child])) {
+                child++;
+            }
+            if (!weaker(ids[child], scores[child], ids[index], scores[index])) {
+                break;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
+
+class RankedUser {
+    int userId;
+    String name;
+    double score;
+
+    public RankedUser(int userId, String name, double score) {
+        this.userId = userId;
+        this.name = name;
+        this.score = score;
+    }
+}
+
+class FollowerRanking {
+    // Users bucketed by follower count. Buckets are intrusive doubly linked lists over user ids, and the
+    // non-empty counts form their own ascending list with sentinel 0, so a follow or unfollow moves one user
+    // one bucket over in O(1) and the top k are read off the highest buckets in O(k)
+    static final int NONE = -1;
+
+    int[] count = new int[0];
+    int[] next = new int[0];
+    int[] prev = new int[0];
+    int[] head = {NONE};
+    int[] higher = {0};
+    int[] lower = {0};
+
+    public synchronized void increment(int user) {
+        ensureUser(user);
+        int from = count[user];
+        int to = from + 1;
+        ensureCount(to);
+        if (head[to] == NONE) {
+            linkAfter(from, to);
+        }
+        move(user, from, to);
+    }
+
+    public synchronized void decrement(int user) {
+        if (user >= count.length || count[user] == 0) {
+            return;
+        }
+        int from = count[user];
+        int to = from - 1;
+        if (to > 0 && head[to] == NONE) {
+            linkAfter(lower[from], to);
+        }
+        move(user, from, to);
+    }
+
+    public synchronized int followers(int user) {
+        return user < count.length ? count[user] : 0;
+    }
+
+    // Writes up to k user ids into ids and their counts into counts, most followed first; returns how many
+    public synchronized int top(int k, int[] ids, int[] counts) {
+        int found = 0;
+        for (int bucket = lower[0]; bucket != 0 && found < k; bucket = lower[bucket]) {
+            for (int user = head[bucket]; user != NONE && found < k; user = next[user]) {
+                ids[found] = user;
+                counts[found++] = bucket;
+            }
+        }
+        return found;
+    }
+
+    public synchronized void rebuild(UserRegistry registry) {
+        count = new int[0];
+        next = new int[0];
+        prev = new int[0];
+        head = new int[] {NONE};
+        higher = new int[] {0};
+        lower = new int[] {0};
+        for (User user : registry.users()) {
+            for (int i = user.followers.size(); i > 0; i--) {
+                increment(user.id);
+            }
+        }
+    }
+
+    private void move(int user, int from, int to) {
+        if (from > 0) {
+            if (prev[user] != NONE) {
+                next[prev[user]] = next[user];
+            } else {
+                head[from] = next[user];
+            }
+            if (next[user] != NONE) {
+                prev[next[user]] = prev[user];
+            }
+            if (head[from] == NONE) {
+                higher[lower[from]] = higher[from];
+                lower[higher[from]] = lower[from];
+            }
+        }
+        count[user] = to;
+        if (to > 0) {
+            prev[user] = NONE;
+            next[user] = head[to];
+            if (head[to] != NONE) {
+                prev[head[to]] = user;
+            }
+            head[to] = user;
+        }
+    }
+
+    // Puts the empty bucket right above the non-empty bucket (or sentinel) below it
+    private void linkAfter(int below, int bucket) {
+        int above = higher[below];
+        higher[below] = bucket;
+        lower[bucket] = below;
+        higher[bucket] = above;
+        lower[above] = bucket;
+    }
+
+    private void ensureUser(int user) {
+        if (user >= count.length) {
+            int size = Math.max(user + 1, count.length * 2);
+            count = Arrays.copyOf(count, size);
+            next = Arrays.copyOf(next, size);
+            prev = Arrays.copyOf(prev, size);
+        }
+    }
+
+    private void ensureCount(int bucket) {
+        if (bucket >= head.length) {
+            int size = Math.max(bucket + 1, head.length * 2);
+            int old = head.length;
+            head = Arrays.copyOf(head, size);
+            Arrays.fill(head, old, size, NONE);
+            higher = Arrays.copyOf(higher, size);
+            lower = Arrays.copyOf(lower, size);
+        }
+    }
+}
+
+class FriendRecommender {
+    CSRGraph graph;
+    // Scratch reused across queries and snapshots; counts stay valid until the next query
+    int[] counts = new int[0];
+    double[] weights = new double[0];
+    int[] touched = new int[0];
+    int touchedSize;
+    long[] excluded = new long[0];
+    TopKHeap heap;
+    int lastCandidates;
+
+    public FriendRecommender(CSRGraph graph) {
+        heap = new TopKHeap(0);
+        use(graph);
+    }
+
+    // Points the engine at another snapshot, growing the scratch with headroom only when users were added.
+    // Counts and weights are cleared lazily through touched, so the grown arrays keep what is still pending
+    public FriendRecommender use(CSRGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        if (n > counts.length) {
+            int size = Math.max(n, counts.length + (counts.length >> 1));
+            counts = Arrays.copyOf(counts, size);
+            weights = Arrays.copyOf(weights, size);
+            touched = Arrays.copyOf(touched, size);
+            excluded = Arrays.copyOf(excluded, (size + 63) >>> 6);
+        }
+        return this;
+    }
+
+    // Keeps the best k candidates two hops from user in the heap, sorted best first; returns how many were kept
+    public int recommend(int user, LinkScorer scorer, int k) {
+        for (int i = 0; i < touchedSize; i++) {
+            counts[touched[i]] = 0;
+            weights[touched[i]] = 0;
+        }
+        touchedSize = 0;
+        if (heap.capacity() != k) {
+            heap = new TopKHeap(k);
+        }
+        heap.clear();
+        lastCandidates = 0;
+        // A user registered after this snapshot was taken has no friends in it yet
+        if (user >= graph.nodeCount()) {
+            return 0;
+        }
+
+        int[] friends = graph.row(user);
+        int from = graph.start(user);
+        int to = graph.end(user);
+        setExcluded(user, true);
+        for (int i = from; i < to; i++) {
+            setExcluded(friends[i], true);
+        }
+
+        // Single two-hop pass: every scorer is a sum over the shared friends w of a weight of deg(w)
+        for (int i = from; i < to; i++) {
+            int friend = friends[i];
+            int[] candidates = graph.row(friend);
+            int friendFrom = graph.start(friend);
+            int friendTo = graph.end(friend);
+            int friendDegree = friendTo - friendFrom;
+            double weight = scorer == LinkScorer.ADAMIC_ADAR ? 1.0 / Math.log(friendDegree)
+                    : scorer == LinkScorer.RESOURCE_ALLOCATION ? 1.0 / friendDegree
+                    : 1.0;
+            for (int j = friendFrom; j < friendTo; j++) {
+                int candidate = candidates[j];
+                if (isExcluded(candidate)) {
+                    continue;
+                }
+                if (counts[candidate]++ == 0) {
+                    touched[touchedSize++] = candidate;
+                }
+                weights[candidate] += weight;
+            }
+        }
+
+        int userDegree = to - from;
+        for (int i = 0; i < touchedSize; i++) {
+            int candidate = touched[i];
+            double score = weights[candidate];
+            if (scorer == LinkScorer.JACCARD) {
+                score = (double) counts[candidate] / (userDegree + graph.degree(candidate) - counts[candidate]);
+            }
+            heap.offer(candidate, score);
+        }
+        lastCandidates = touchedSize;
+
+        setExcluded(user, false);
+        for (int i = from; i < to; i++) {
+            setExcluded(friends[i], false);
+        }
+        heap.sortDescending();
+        return heap.size;
+    }
+
+    public int resultId(int rank) {
+        return heap.ids[rank];
+    }
+
+    public double resultScore(int rank) {
+        return heap.scores[rank];
+    }
+
+    public int resultMutualFriends(int rank) {
+        return counts[heap.ids[rank]];
+    }
+
+    private boolean isExcluded(int id) {
+        return (excluded[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private void setExcluded(int id, boolean value) {
+        if (value) {
+            excluded[id >>> 6] |= 1L << id;
+        } else {
+            excluded[id >>> 6] &= ~(1L << id);
+        }
+    }
+}
+
+class SuggestionTable {
+    static final int MAGIC = 0x53554747;
+
+    // Fixed stride of k slots per user, so workers fill their own rows without coordinating
+    final int k;
+    final int[] counts;
+    final int[] ids;
+    final float[] scores;
+    final int[] mutualFriends;
+
+    public SuggestionTable(int userCount, int k) {
+        this.k = k;
+        counts = new int[userCount];
+        ids = new int[userCount * k];
+        scores = new float[userCount * k];
+        mutualFriends = new int[userCount * k];
+    }
+
+    public int userCount() {
+        return counts.length;
+    }
+
+    public int size(int user) {
+        return user < counts.length ? counts[user] : 0;
+    }
+
+    public int id(int user, int rank) {
+        return ids[user * k + rank];
+    }
+
+    public float score(int user, int rank) {
+        return scores[user * k + rank];
+    }
+
+    public int mutualFriends(int user, int rank) {
+        return mutualFriends[user * k + rank];
+    }
+
+    public void writeTo(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(counts.length);
+            out.writeInt(k);
+            for (int user = 0; user < counts.length; user++) {
+                out.writeInt(counts[user]);
+                for (int rank = 0; rank < counts[user]; rank++) {
+                    out.writeInt(id(user, rank));
+                    out.writeFloat(score(user, rank));
+                    out.writeInt(mutualFriends(user, rank));
+                }
+            }
+        }
+    }
+
+    public static SuggestionTable readFrom(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a suggestion table: " + file);
+            }
+            SuggestionTable table = new SuggestionTable(in.readInt(), in.readInt());
+            for (int user = 0; user < table.counts.length; user++) {
+                table.counts[user] = in.readInt();
+                for (int rank = 0; rank < table.counts[user]; rank++) {
+                    int slot = user * table.k + rank;
+                    table.ids[slot] = in.readInt();
+                    table.scores[slot] = in.readFloat();
+                    table.mutualFriends[slot] = in.readInt();
+                }
+            }
+            return table;
+        }
+    }
+}
+
+class BatchSuggestionJob {
+    // Small chunks so threads that draw hub-heavy ranges don't hold up the rest
+    static final int CHUNKS_PER_THREAD = 64;
+
+    LinkScorer scorer;
+    int k;
+    int threads;
+    SuggestionTable table;
+    long elapsedNanos;
+
+    public BatchSuggestionJob(LinkScorer scorer, int k, int threads) {
+        this.scorer = scorer;
+        this.k = k;
+        this.threads = Math.max(1, threads);
+    }
+
+    public SuggestionTable run(CSRGraph graph) {
+        long start = System.nanoTime();
+        int n = graph.nodeCount();
+        SuggestionTable result = new SuggestionTable(n, k);
+        // Engines are n-sized, so they belong to this run: a chunk borrows an idle one or makes its own, and
+        // all of them become garbage when the run returns instead of staying with the pool's threads
+        Queue<FriendRecommender> idle = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        ParallelRange.forEachChunk(pool, ParallelRange.evenBounds(n, threads * CHUNKS_PER_THREAD), (chunk, from, to) -> {
+            FriendRecommender engine = idle.poll();
+            if (engine == null) {
+                engine = new FriendRecommender(graph);
+            }
+            for (int user = from; user < to; user++) {
+                int found = engine.recommend(user, scorer, k);
+                result.counts[user] = found;
+                for (int rank = 0; rank < found; rank++) {
+                    int slot = user * k + rank;
+                    result.ids[slot] = engine.resultId(rank);
+                    result.scores[slot] = (float) engine.resultScore(rank);
+                    result.mutualFriends[slot] = engine.resultMutualFriends(rank);
+                }
+            }
+            idle.add(engine);
+        });
+        // The pool can still hold a finished task, and through it this queue
+        idle.clear();
+        elapsedNanos = System.nanoTime() - start;
+        table = result;
+        return result;
+    }
+
+    public double usersPerSecond() {
+        return elapsedNanos == 0 ? 0 : table.userCount() * 1e9 / elapsedNanos;
+    }
+}
+
+class FeedCache {
+    // Ring buffer of the newest posts pushed to this reader, oldest overwritten first
+    Post[] ring;
+    int head;
+    int size;
+    // True while the ring still holds every post from the pushing accounts the reader follows
+    boolean complete;
+
+    public FeedCache(int capacity) {
+        ring = new Post[capacity];
+        complete = true;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized void push(Post post) {
+        if (ring.length == 0) {
+            complete = false;
+            return;
+        }
+        ring[head] = post;
+        head = (head + 1) % ring.length;
+        if (size < ring.length) {
+            size++;
+        } else {
+            complete = false;
+        }
+    }
+
+    // Concurrent authors can push slightly out of id order, so the copy is re-sorted
+    public synchronized Post[] newestFirst() {
+        Post[] posts = new Post[size];
+        for (int i = 0; i < size; i++) {
+            posts[i] = ring[(head - 1 - i + ring.length) % ring.length];
+        }
+        Arrays.sort(posts, (a, b) -> Long.compare(b.id, a.id));
+        return posts;
+    }
+
+    // Folds posts pulled during a rebuild in behind whatever was pushed while the pull ran
+    public synchronized void seed(List<Post> pulled, boolean pulledEverything) {
+        Map<Long, Post> merged = new TreeMap<>(Comparator.reverseOrder());
+        for (Post post : newestFirst()) {
+            merged.put(post.id, post);
+        }
+        for (Post post : pulled) {
+            merged.put(post.id, post);
+        }
+        List<Post> newest = new ArrayList<>(merged.values());
+        head = 0;
+        size = 0;
+        for (int i = Math.min(newest.size(), ring.length) - 1; i >= 0; i--) {
+            push(newest.get(i));
+        }
+        complete = pulledEverything && newest.size() <= ring.length;
+    }
+}
+
+class FeedService {
+    int celebrityThreshold;
+    int cacheCapacity;
+
+    public FeedService(int celebrityThreshold, int cacheCapacity) {
+        this.celebrityThreshold = celebrityThreshold;
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    // Fan-out on write for normal accounts; once an account reaches the threshold it stays pull-only
+    public void onPost(Post post) {
+        User author = post.author;
+        if (!author.celebrity && author.followers.size() >= celebrityThreshold) {
+            author.celebrity = true;
+        }
+        if (author.celebrity) {
+            return;
+        }
+        for (User follower : author.followers) {
+            FeedCache cache = follower.feed;
+            if (cache != null) {
+                cache.push(post);
+            }
+        }
+    }
+
+    // A new follow brings in older posts the cache never saw; unfollows are filtered out at read time instead
+    public void onFollow(User follower) {
+        follower.feed = null;
+    }
+
+    public List<Post> homeFeed(User user, int limit) {
+        FeedCache cache = user.feed;
+        if (cache == null) {
+            rebuild(user);
+            cache = user.feed;
+        }
+        if (cache == null) {
+            // A follow landed mid-rebuild and dropped the cache again; serve this read by pulling
+            return merge(user.follows, false, null, 0, limit);
+        }
+        Post[] cached = cache.newestFirst();
+        boolean complete = cache.isComplete();
+        int usable = 0;
+        for (Post post : cached) {
+            if (user.follows.contains(post.author)) {
+                cached[usable++] = post;
+            }
+        }
+        if (usable < limit && !complete) {
+            // The ring has dropped posts this page would need, so pull straight from the timelines
+            return merge(user.follows, false, null, 0, limit);
+        }
+        return merge(user.follows, true, cached, usable, limit);
+    }
+
+    private void rebuild(User user) {
+        // Install first so posts written during the pull are pushed into it rather than lost
+        FeedCache cache = new FeedCache(cacheCapacity);
+        user.feed = cache;
+        List<User> pushing = new ArrayList<>();
+        for (User followed : user.follows) {
+            if (!followed.celebrity) {
+                pushing.add(followed);
+            }
+        }
+        List<Post> newest = merge(pushing, false, null, 0, cacheCapacity + 1);
+        cache.seed(newest, newest.size() <= cacheCapacity);
+    }
+
+    // K-way merge, newest first by post id, of the cached posts and the timelines of the given authors
+    private List<Post> merge(Collection<User> authors, boolean celebritiesOnly, Post[] cached, int cachedSize, int limit) {
+        PriorityQueue<FeedCursor> heads = new PriorityQueue<>(
+                (a, b) -> Long.compare(b.head().id, a.head().id));
+        if (cachedSize > 0) {
+            heads.add(new FeedCursor(null, cached, cachedSize - 1, cachedSize));
+        }
+        for (User author : authors) {
+            int count = author.posts.size();
+            if ((!celebritiesOnly || author.celebrity) && count > 0) {
+                heads.add(new FeedCursor(author.posts, null, count - 1, 0));
+            }
+        }
+        List<Post> feed = new ArrayList<>(Math.min(limit, 64));
+        long lastId = -1;
+        while (!heads.isEmpty() && feed.size() < limit) {
+            FeedCursor cursor = heads.poll();
+            Post post = cursor.head();
+            // A post pushed before its author became a celebrity can arrive from both the cache and the pull
+            if (post.id != lastId) {
+                feed.add(post);
+                lastId = post.id;
+            }
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        return feed;
+    }
+}
+
+class FeedCursor {
+    // Walks either a timeline backwards from its newest post or a newest-first cached array forwards
+    Timeline timeline;
+    Post[] posts;
+    int index;
+    int remaining;
+
+    public FeedCursor(Timeline timeline, Post[] posts, int newestTimelineIndex, int cachedSize) {
+        this.timeline = timeline;
+        this.posts = posts;
+        this.index = timeline != null ? newestTimelineIndex : 0;
+        this.remaining = timeline != null ? newestTimelineIndex + 1 : cachedSize;
+    }
+
+    public Post head() {
+        return timeline != null ? timeline.get(index) : posts[index];
+    }
+
+    public boolean advance() {
+        remaining--;
+        if (timeline != null) {
+            index--;
+        } else {
+            index++;
+        }
+        return remaining > 0;
+    }
+}
+
+class ChannelWriter implements Closeable {
+    FileChannel channel;
+    ByteBuffer buffer;
+
+    public ChannelWriter(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(1 << 20);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    public void putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void putLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putInt(bytes.length);
+        for (int offset = 0; offset < bytes.length; ) {
+            ensure(1);
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    public void putInts(int[] values, int from, int to) throws IOException {
+        while (from < to) {
+            ensure(4);
+            int count = Math.min(buffer.remaining() / 4, to - from);
+            buffer.asIntBuffer().put(values, from, count);
+            buffer.position(buffer.position() + count * 4);
+            from += count;
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.force(true);
+        channel.close();
+    }
+}
+
+class MappedReader implements Closeable {
+    // A single mapping can't exceed 2GB, so large files are walked through a sliding window
+    static final long WINDOW = 1L << 30;
+
+    FileChannel channel;
+    long fileSize;
+    long windowStart;
+    MappedByteBuffer window;
+
+    public MappedReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        fileSize = channel.size();
+        map(0);
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, fileSize - position));
+    }
+
+    private void require(int bytes) throws IOException {
+        if (window.remaining() < bytes) {
+            map(position());
+            if (window.remaining() < bytes) {
+                throw new EOFException("Unexpected end of snapshot at byte " + position());
+            }
+        }
+    }
+
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    public boolean hasRemaining() {
+        return position() < fileSize;
+    }
+
+    public int getInt() throws IOException {
+        require(4);
+        return window.getInt();
+    }
+
+    public long getLong() throws IOException {
+        require(8);
+        return window.getLong();
+    }
+
+    public String getString() throws IOException {
+        byte[] bytes = new byte[getInt()];
+        for (int offset = 0; offset < bytes.length; ) {
+            require(1);
+            int count = Math.min(window.remaining(), bytes.length - offset);
+            window.get(bytes, offset, count);
+            offset += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Bulk copy straight out of the mapping; no per-element decoding
+    public void getInts(int[] values, int from, int to) throws IOException {
+        while (from < to) {
+            require(4);
+            int count = Math.min(window.remaining() / 4, to - from);
+            window.asIntBuffer().get(values, from, count);
+            window.position(window.position() + count * 4);
+            from += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+class SnapshotFile {
+    static final int MAGIC = 0x534e4554;
+    static final int VERSION = 1;
+
+    // Layout: header, user names, friendship CSR, follow CSR, then each user's posts with their likers
+    public static void write(SocialNetwork2 network, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        synchronized (network.registry) {
+            network.locks.lockAll();
+            try (ChannelWriter out = new ChannelWriter(FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+                UserRegistry registry = network.registry;
+                int n = registry.size();
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putInt(n);
+                out.putLong(network.nextPostId.get());
+                for (int u = 0; u < n; u++) {
+                    out.putString(registry.get(u).name);
+                }
+
+                CSRGraph friends = network.flatSnapshot();
+                out.putInt(friends.edgeCount());
+                out.putInts(friends.offsets, 0, n + 1);
+                out.putInts(friends.neighbors, 0, friends.edgeCount());
+
+                int[] followOffsets = new int[n + 1];
+                for (int u = 0; u < n; u++) {
+                    followOffsets[u + 1] = followOffsets[u] + registry.get(u).follows.size();
+                }
+                out.putInt(followOffsets[n]);
+                out.putInts(followOffsets, 0, n + 1);
+                for (int u = 0; u < n; u++) {
+                    for (User followed : registry.get(u).follows) {
+                        out.putInt(followed.id);
+                    }
+                }
+
+                for (int u = 0; u < n; u++) {
+                    Timeline posts = registry.get(u).posts;
+                    int count = posts.size();
+                    out.putInt(count);
+                    for (int i = 0; i < count; i++) {
+                        Post post = posts.get(i);
+                        out.putLong(post.id);
+                        out.putLong(post.timestamp);
+                        out.putString(post.post);
+                        Set<User> likers = post.likedBy;
+                        List<User> likedBy = likers == null ? Collections.emptyList() : new ArrayList<>(likers);
+                        out.putInt(likedBy.size());
+                        for (User liker : likedBy) {
+                            out.putInt(liker.id);
+                        }
+                    }
+                }
+            } finally {
+                network.locks.unlockAll();
+            }
+        }
+        // Readers only ever see a complete file
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static SocialNetwork2 read(Path file) throws IOException {
+        SocialNetwork2 network = new SocialNetwork2();
+        try (MappedReader in = new MappedReader(file)) {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a social network snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            int n = in.getInt();
+            long nextPostId = in.getLong();
+            UserRegistry registry = network.registry;
+            for (int u = 0; u < n; u++) {
+                try {
+                    registry.register(in.getString());
+                } catch (InvalidInputException e) {
+                    throw new IOException("Corrupt snapshot: " + e.getMessage());
+                }
+            }
+
+            // Friendship rows stay in CSR form; live rows are only materialized when first touched
+            int edgeCount = in.getInt();
+            int[] offsets = new int[n + 1];
+            int[] neighbors = new int[edgeCount];
+            in.getInts(offsets, 0, n + 1);
+            in.getInts(neighbors, 0, edgeCount);
+            network.setBaseGraph(new CSRGraph(offsets, neighbors));
+
+            int followCount = in.getInt();
+            int[] followOffsets = new int[n + 1];
+            int[] followTargets = new int[followCount];
+            in.getInts(followOffsets, 0, n + 1);
+            in.getInts(followTargets, 0, followCount);
+            for (int u = 0; u < n; u++) {
+                User follower = registry.get(u);
+                for (int i = followOffsets[u]; i < followOffsets[u + 1]; i++) {
+                    User followed = registry.get(followTargets[i]);
+                    follower.addFollow(followed);
+                    followed.addFollower(follower);
+                }
+            }
+
+            for (int u = 0; u < n; u++) {
+                User author = registry.get(u);
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    long id = in.getLong();
+                    long timestamp = in.getLong();
+                    Post post = new Post(id, author, in.getString(), timestamp);
+                    int likers = in.getInt();
+                    for (int j = 0; j < likers; j++) {
+                        post.like(registry.get(in.getInt()));
+                    }
+                    author.posts.append(post);
+                    network.postsById.put(post.id, post);
+                }
+            }
+            network.nextPostId.set(nextPostId);
+        }
+        for (User user : network.registry.users()) {
+            user.celebrity = user.followers.size() >= network.feeds.celebrityThreshold;
+        }
+        network.followerRanking.rebuild(network.registry);
+        network.rebuildFollowGraph();
+        return network;
+    }
+}
+
+class WriteAheadLog implements Closeable {
+    static final byte ADD_USER = 1;
+    static final byte ADD_FRIEND = 2;
+    static final byte REMOVE_FRIEND = 3;
+    static final byte FOLLOW = 4;
+    static final byte UNFOLLOW = 5;
+    static final byte ADD_POST = 6;
+    static final byte LIKE = 7;
+    static final byte UNLIKE = 8;
+
+    // Record: int payload length, byte type, payload, int CRC32 of type + payload
+    static final int RECORD_OVERHEAD = 9;
+
+    Path file;
+    FileChannel channel;
+    boolean fsync;
+    // Writers append into pending under this monitor; whoever holds flushLock writes and fsyncs the whole batch
+    ByteBuffer pending;
+    ByteBuffer spare;
+    int recordStart;
+    long appendedLsn;
+    volatile long durableLsn;
+    // The first failed write; the batch it held is lost, so every later commit fails too rather than
+    // acknowledging writes that sit behind a gap in the log
+    volatile IOException failure;
+    final Object flushLock = new Object();
+    CRC32 crc = new CRC32();
+
+    public WriteAheadLog(Path file, long validLength, boolean fsync) throws IOException {
+        this.file = file;
+        this.fsync = fsync;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        // Drop a torn tail left by a crash mid-write before appending after it
+        channel.truncate(validLength);
+        channel.position(validLength);
+        appendedLsn = validLength;
+        durableLsn = validLength;
+        pending = ByteBuffer.allocate(1 << 16);
+        spare = ByteBuffer.allocate(1 << 16);
+    }
+
+    public long logUser(byte type, String name) {
+        byte[] first = name.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            begin(type, 4 + first.length);
+            pending.putInt(first.length).put(first);
+            return end();
+        }
+    }
+
+    public long logPair(byte type, String name1, String name2) {
+        byte[] first = name1.getBytes(StandardCharsets.UTF_8);
+        byte[] second = name2.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            begin(type, 8 + first.length + second.length);
+            pending.putInt(first.length).put(first).putInt(second.length).put(second);
+            return end();
+        }
+    }
+
+    public long logPost(String author, long postId, long timestamp, String content) {
+        byte[] first = author.getBytes(StandardCharsets.UTF_8);
+        byte[] second = content.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            begin(ADD_POST, 24 + first.length + second.length);
+            pending.putInt(first.length).put(first).putLong(postId).putLong(timestamp)
+                    .putInt(second.length).put(second);
+            return end();
+        }
+    }
+
+    public long logLike(byte type, String liker, long postId) {
+        byte[] first = liker.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            begin(type, 12 + first.length);
+            pending.putInt(first.length).put(first).putLong(postId);
+            return end();
+        }
+    }
+
+    private void begin(byte type, int payloadLength) {
+        int needed = RECORD_OVERHEAD + payloadLength;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.putInt(payloadLength);
+        recordStart = pending.position();
+        pending.put(type);
+    }
+
+    private long end() {
+        crc.reset();
+        crc.update(pending.array(), recordStart, pending.position() - recordStart);
+        pending.putInt((int) crc.getValue());
+        appendedLsn += pending.position() - recordStart + 4;
+        return appendedLsn;
+    }
+
+    // Returns once every record up to lsn is on disk; concurrent callers share one write and fsync
+    public void commit(long lsn) {
+        if (durableLsn >= lsn) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log " + file + " failed earlier", failure);
+            }
+            ByteBuffer batch;
+            long batchEnd;
+            synchronized (this) {
+                batch = pending;
+                pending = spare;
+                batchEnd = appendedLsn;
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                if (fsync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                failure = e;
+                throw new UncheckedIOException("Write-ahead log " + file + " failed", e);
+            } finally {
+                batch.clear();
+                spare = batch;
+            }
+            durableLsn = batchEnd;
+        }
+    }
+
+    public void flush() {
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+        }
+        commit(lsn);
+    }
+
+    // Called with every writer stopped, right after a snapshot has captured everything in the log
+    public void reset() throws IOException {
+        flush();
+        synchronized (flushLock) {
+            synchronized (this) {
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+                appendedLsn = 0;
+                durableLsn = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Applies every intact record to network and returns the length of the valid prefix of the log
+    public static long replay(Path file, SocialNetwork2 network) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long valid = 0;
+        CRC32 check = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            long remaining = Files.size(file);
+            while (remaining >= RECORD_OVERHEAD) {
+                int payloadLength = in.readInt();
+                if (payloadLength < 0 || payloadLength > remaining - RECORD_OVERHEAD) {
+                    break;
+                }
+                byte[] record = new byte[payloadLength + 1];
+                in.readFully(record);
+                int expected = in.readInt();
+                check.reset();
+                check.update(record, 0, record.length);
+                if ((int) check.getValue() != expected) {
+                    break;
+                }
+                apply(ByteBuffer.wrap(record), network);
+                valid += payloadLength + RECORD_OVERHEAD;
+                remaining -= payloadLength + RECORD_OVERHEAD;
+            }
+        }
+        return valid;
+    }
+
+    // Replay is idempotent: records already reflected in the snapshot are skipped or re-applied harmlessly
+    private static void apply(ByteBuffer record, SocialNetwork2 network) {
+        byte type = record.get();
+        String first = readString(record);
+        UserRegistry registry = network.registry;
+        switch (type) {
+            case ADD_USER:
+                if (!registry.contains(first)) {
+                    try {
+                        network.addUser(first);
+                    } catch (InvalidInputException e) {
+                        // Already validated when it was first logged
+                    }
+                }
+                break;
+            case ADD_FRIEND:
+            case REMOVE_FRIEND:
+            case FOLLOW:
+            case UNFOLLOW:
+                User user1 = registry.get(first);
+                User user2 = registry.get(readString(record));
+                if (user1 == null || user2 == null) {
+                    break;
+                }
+                if (type == ADD_FRIEND) {
+                    network.applyAddFriend(user1, user2);
+                } else if (type == REMOVE_FRIEND) {
+                    network.applyRemoveFriend(user1, user2);
+                } else if (type == FOLLOW) {
+                    network.applyFollow(user1, user2);
+                } else {
+                    network.applyUnfollow(user1, user2);
+                }
+                break;
+            case ADD_POST:
+                User author = registry.get(first);
+                long postId = record.getLong();
+                long timestamp = record.getLong();
+                String content = readString(record);
+                if (author != null && !network.postsById.containsKey(postId)) {
+                    network.applyAddPost(author, postId, timestamp, content);
+                }
+                break;
+            case LIKE:
+            case UNLIKE:
+                User liker = registry.get(first);
+                Post post = network.postsById.get(record.getLong());
+                if (liker != null && post != null) {
+                    network.applyLike(liker, post, type == LIKE);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+class LongIntMap {
+    // Open addressing with linear probing; maps external dataset ids to dense user ids without boxing
+    long[] keys;
+    int[] values;
+    int size;
+
+    public LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; values[slot] != -1; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return -1;
+    }
+
+    public void put(long key, int value) {
+        if (size * 2 >= keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != -1 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (values[slot] == -1) {
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, -1);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != -1) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
+
+class RangeScanner {
+    // Sequential byte reader over part of a file using positional reads, so ranges can be scanned in parallel
+    FileChannel channel;
+    ByteBuffer buffer;
+    long position;
+
+    public RangeScanner(FileChannel channel, long position) {
+        this.channel = channel;
+        this.position = position;
+        this.buffer = ByteBuffer.allocate(1 << 16);
+        buffer.flip();
+    }
+
+    public int next() throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            buffer.flip();
+            if (read <= 0) {
+                return -1;
+            }
+        }
+        position++;
+        return buffer.get() & 0xff;
+    }
+}
+
+class BulkLoader {
+    int threads;
+    long edgesRead;
+    long uniqueEdges;
+    long elapsedNanos;
+
+    public BulkLoader(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Reads a SNAP-style edge list ("src dst" per line, '#' or '%' comments, extra columns ignored) and an
+    // optional "id,name" CSV; users missing from the CSV are named after their dataset id
+    public SocialNetwork2 load(Path edgeFile, Path namesFile) throws IOException {
+        long start = System.nanoTime();
+        SocialNetwork2 network = new SocialNetwork2();
+        LongIntMap ids = new LongIntMap(1 << 16);
+        if (namesFile != null) {
+            readNames(namesFile, network.registry, ids);
+        }
+
+        long[][] chunks = parseEdges(edgeFile);
+        UserRegistry registry = network.registry;
+        // Remapping to dense ids is the one sequential pass; pairs are rewritten in place to save memory
+        for (long[] chunk : chunks) {
+            int length = (int) chunk[0];
+            for (int i = 1; i <= length; i++) {
+                int id = ids.get(chunk[i]);
+                if (id == -1) {
+                    id = register(registry, String.valueOf(chunk[i]));
+                    ids.put(chunk[i], id);
+                }
+                chunk[i] = id;
+            }
+            edgesRead += length / 2;
+        }
+
+        network.setBaseGraph(buildGraph(chunks, registry.size()));
+        uniqueEdges = network.snapshot().edgeCount() / 2;
+        elapsedNanos = System.nanoTime() - start;
+        return network;
+    }
+
+    public double edgesPerSecond() {
+        return elapsedNanos == 0 ? 0 : edgesRead * 1e9 / elapsedNanos;
+    }
+
+    private static int register(UserRegistry registry, String name) throws IOException {
+        try {
+            return registry.register(name).id;
+        } catch (InvalidInputException e) {
+            throw new IOException("Cannot import user: " + e.getMessage());
+        }
+    }
+
+    private static void readNames(Path namesFile, UserRegistry registry, LongIntMap ids) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(namesFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma <= 0) {
+                    continue;
+                }
+                long externalId;
+                try {
+                    externalId = Long.parseLong(line.substring(0, comma).trim());
+                } catch (NumberFormatException e) {
+                    // Header row or malformed id
+                    continue;
+                }
+                if (ids.get(externalId) == -1) {
+                    ids.put(externalId, register(registry, line.substring(comma + 1).trim()));
+                }
+            }
+        }
+    }
+
+    // Each worker parses the lines that start inside its byte range; chunk[0] holds the number of ids that follow
+    private long[][] parseEdges(Path edgeFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(edgeFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parts = (int) Math.max(1, Math.min(threads, size / (1 << 20) + 1));
+            long[][] chunks = new long[parts][];
+            ForkJoinPool pool = ParallelRange.pool(threads);
+            IOException[] failure = new IOException[1];
+            ParallelRange.forEachChunk(pool, ParallelRange.evenBounds(parts, parts), (chunk, from, to) -> {
+                try {
+                    chunks[chunk] = parseRange(channel, size * chunk / parts, size * (chunk + 1) / parts);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            return chunks;
+        }
+    }
+
+    private static long[] parseRange(FileChannel channel, long start, long end) throws IOException {
+        long[] pairs = new long[1 + 1024];
+        int length = 0;
+        RangeScanner in = new RangeScanner(channel, Math.max(0, start - 1));
+        if (start > 0) {
+            // The line straddling our start belongs to the previous range
+            int c = in.next();
+            while (c != -1 && c != '\n') {
+                c = in.next();
+            }
+        }
+        while (in.position < end) {
+            long first = 0;
+            long second = 0;
+            long value = 0;
+            int fields = 0;
+            boolean inNumber = false;
+            boolean comment = false;
+            int c = in.next();
+            if (c == -1) {
+                break;
+            }
+            for (; c != -1 && c != '\n'; c = in.next()) {
+                if (comment || fields == 2) {
+                    continue;
+                }
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    inNumber = true;
+                } else if (inNumber) {
+                    if (fields++ == 0) {
+                        first = value;
+                    } else {
+                        second = value;
+                    }
+                    value = 0;
+                    inNumber = false;
+                } else if (fields == 0 && (c == '#' || c == '%')) {
+                    comment = true;
+                }
+            }
+            if (inNumber && fields < 2) {
+                if (fields++ == 0) {
+                    first = value;
+                } else {
+                    second = value;
+                }
+            }
+            if (fields == 2 && first != second) {
+                if (length + 2 >= pairs.length) {
+                    pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                }
+                pairs[1 + length++] = first;
+                pairs[1 + length++] = second;
+            }
+        }
+        pairs[0] = length;
+        return pairs;
+    }
+
+    // Count, fill, then sort and de-duplicate every row, each pass split across the pool
+    private CSRGraph buildGraph(long[][] chunks, int n) {
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        int[] chunkBounds = ParallelRange.evenBounds(chunks.length, chunks.length);
+        AtomicIntegerArray degree = new AtomicIntegerArray(n);
+        ParallelRange.forEachChunk(pool, chunkBounds, (chunk, from, to) -> {
+            long[] pairs = chunks[chunk];
+            for (int i = 1; i <= pairs[0]; i++) {
+                degree.incrementAndGet((int) pairs[i]);
+            }
+        });
+        int[] offsets = new int[n + 1];
+        for (int u = 0; u < n; u++) {
+            offsets[u + 1] = offsets[u] + degree.get(u);
+        }
+        AtomicIntegerArray cursor = degree;
+        for (int u = 0; u < n; u++) {
+            cursor.set(u, offsets[u]);
+        }
+        int[] neighbors = new int[offsets[n]];
+        ParallelRange.forEachChunk(pool, chunkBounds, (chunk, from, to) -> {
+            long[] pairs = chunks[chunk];
+            for (int i = 1; i < pairs[0]; i += 2) {
+                int u = (int) pairs[i];
+                int v = (int) pairs[i + 1];
+                neighbors[cursor.getAndIncrement(u)] = v;
+                neighbors[cursor.getAndIncrement(v)] = u;
+            }
+        });
+        Arrays.fill(chunks, null);
+
+        CSRGraph raw = new CSRGraph(offsets, neighbors);
+        int[] rowBounds = raw.balancedBounds(threads * 4);
+        int[] unique = new int[n + 1];
+        ParallelRange.forEachChunk(pool, rowBounds, (chunk, from, to) -> {
+            for (int u = from; u < to; u++) {
+                int rowStart = offsets[u];
+                Arrays.sort(neighbors, rowStart, offsets[u + 1]);
+                int write = rowStart;
+                for (int i = rowStart; i < offsets[u + 1]; i++) {
+                    if (write == rowStart || neighbors[write - 1] != neighbors[i]) {
+                        neighbors[write++] = neighbors[i];
+                    }
+                }
+                unique[u + 1] = write - rowStart;
+            }
+        });
+        for (int u = 0; u < n; u++) {
+            unique[u + 1] += unique[u];
+        }
+        int[] compact = new int[unique[n]];
+        ParallelRange.forEachChunk(pool, rowBounds, (chunk, from, to) -> {
+            for (int u = from; u < to; u++) {
+                System.arraycopy(neighbors, offsets[u], compact, unique[u], unique[u + 1] - unique[u]);
+            }
+        });
+        return new CSRGraph(unique, compact);
+    }
+}
+
+class IntCounters {
+    // Chunked so the array can grow with new users while other threads keep incrementing existing slots
+    static final int CHUNK_BITS = 14;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
+
+    public void ensureCapacity(int size) {
+        if (size > chunks.length << CHUNK_BITS) {
+            grow(size);
+        }
+    }
+
+    private synchronized void grow(int size) {
+        int needed = (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        if (needed > chunks.length) {
+            AtomicIntegerArray[] grown = Arrays.copyOf(chunks, needed);
+            for (int i = chunks.length; i < needed; i++) {
+                grown[i] = new AtomicIntegerArray(CHUNK_SIZE);
+            }
+            chunks = grown;
+        }
+    }
+
+    public void add(int index, int delta) {
+        chunks[index >>> CHUNK_BITS].addAndGet(index & (CHUNK_SIZE - 1), delta);
+    }
+
+    public void set(int index, int value) {
+        chunks[index >>> CHUNK_BITS].set(index & (CHUNK_SIZE - 1), value);
+    }
+
+    public boolean compareAndSet(int index, int expected, int value) {
+        return chunks[index >>> CHUNK_BITS].compareAndSet(index & (CHUNK_SIZE - 1), expected, value);
+    }
+
+    public int get(int index) {
+        AtomicIntegerArray[] current = chunks;
+        int chunk = index >>> CHUNK_BITS;
+        return chunk < current.length ? current[chunk].get(index & (CHUNK_SIZE - 1)) : 0;
+    }
+}
+
+class CentralityService {
+    // Degrees follow every friendship change directly; the eigenvector is refreshed on demand,
+    // warm-started from the last vector so a small batch of changes converges in a few sweeps
+    IntCounters degrees;
+    int maxIterations;
+    double tolerance;
+    int threads;
+    double[] eigenvector;
+    long eigenvectorVersion;
+    int lastIterations;
+
+    public CentralityService(int maxIterations, double tolerance, int threads) {
+        this.degrees = new IntCounters();
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.threads = threads;
+        this.eigenvectorVersion = -1;
+    }
+
+    public void onUserAdded(User user) {
+        degrees.ensureCapacity(user.id + 1);
+    }
+
+    public void onFriendshipChanged(User user, int delta) {
+        degrees.add(user.id, delta);
+    }
+
+    public void reset(CSRGraph graph) {
+        degrees.ensureCapacity(graph.nodeCount());
+        for (int u = 0; u < graph.nodeCount(); u++) {
+            degrees.set(u, graph.degree(u));
+        }
+    }
+
+    public int degree(int user) {
+        return degrees.get(user);
+    }
+
+    public double degreeCentrality(int user, int totalUsers) {
+        return (double) degrees.get(user) / (totalUsers - 1);
+    }
+
+    public synchronized double[] eigenvector(CSRGraph graph) {
+        if (eigenvector == null || eigenvectorVersion != graph.version) {
+            long start = Metrics.start();
+            EigenvectorCentrality engine = new EigenvectorCentrality(maxIterations, tolerance, threads);
+            eigenvector = engine.compute(graph, eigenvector);
+            eigenvectorVersion = graph.version;
+            lastIterations = engine.iterations;
+            if (start != 0) {
+                Metrics.EIGENVECTOR.recordSince(start);
+                Metrics.EIGENVECTOR_ITERATIONS.record(engine.iterations);
+            }
+        }
+        return eigenvector;
+    }
+}
+
+class BetweennessCentrality {
+    // Chunks of sources handed to the pool; small enough to balance, large enough to amortise scheduling
+    static final int SOURCES_PER_CHUNK = 64;
+
+    int threads;
+    double[] betweenness;
+    double[] closeness;
+    int sources;
+
+    public BetweennessCentrality(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Hoeffding plus a union bound over all nodes: with this many uniform pivots every betweenness,
+    // normalised to [0, 1] per source, is within epsilon of its exact value with probability 1 - delta
+    public static int pivotsFor(double epsilon, double delta, int nodeCount) {
+        return (int) Math.min(nodeCount, Math.ceil(Math.log(2.0 * nodeCount / delta) / (2 * epsilon * epsilon)));
+    }
+
+    public void computeExact(CSRGraph graph) {
+        int n = graph.nodeCount();
+        int[] all = new int[n];
+        for (int u = 0; u < n; u++) {
+            all[u] = u;
+        }
+        run(graph, all);
+    }
+
+    // Samples pivots without replacement; all results are scaled by n / pivots to estimate the exact values
+    public void computeApproximate(CSRGraph graph, int pivots, long seed) {
+        int n = graph.nodeCount();
+        if (pivots >= n) {
+            computeExact(graph);
+            return;
+        }
+        int[] ids = new int[n];
+        for (int u = 0; u < n; u++) {
+            ids[u] = u;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < pivots; i++) {
+            int j = i + random.nextInt(n - i);
+            int swap = ids[i];
+            ids[i] = ids[j];
+            ids[j] = swap;
+        }
+        run(graph, Arrays.copyOf(ids, pivots));
+    }
+
+    private void run(CSRGraph graph, int[] sourceIds) {
+        int n = graph.nodeCount();
+        // Workers are n-sized and belong to this run: a chunk borrows an idle one or makes its own, so none
+        // stays with the pool's threads once the run returns
+        Queue<BrandesWorker> workers = new ConcurrentLinkedQueue<>();
+        Queue<BrandesWorker> idle = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        int chunks = Math.max(1, (sourceIds.length + SOURCES_PER_CHUNK - 1) / SOURCES_PER_CHUNK);
+        ParallelRange.forEachChunk(pool, ParallelRange.evenBounds(sourceIds.length, chunks), (chunk, from, to) -> {
+            BrandesWorker worker = idle.poll();
+            if (worker == null) {
+                worker = new BrandesWorker(n);
+                workers.add(worker);
+            }
+            for (int i = from; i < to; i++) {
+                worker.accumulate(graph, sourceIds[i]);
+            }
+            idle.add(worker);
+        });
+
+        sources = sourceIds.length;
+        double scale = sources == 0 ? 0 : (double) n / sources;
+        betweenness = new double[n];
+        closeness = new double[n];
+        double[] distanceSum = new double[n];
+        double[] reached = new double[n];
+        for (BrandesWorker worker : workers) {
+            for (int v = 0; v < n; v++) {
+                betweenness[v] += worker.betweenness[v];
+                distanceSum[v] += worker.distanceSum[v];
+                reached[v] += worker.reached[v];
+            }
+        }
+        // The pool can still hold a finished task, and through it these queues
+        idle.clear();
+        workers.clear();
+        for (int v = 0; v < n; v++) {
+            // Every undirected pair is seen from both ends
+            betweenness[v] *= scale / 2;
+            // Wasserman-Faust closeness, so users in small components don't look central
+            double reachable = reached[v] * scale - 1;
+            double totalDistance = distanceSum[v] * scale;
+            closeness[v] = totalDistance <= 0 || n < 2 ? 0 : (reachable / (n - 1)) * (reachable / totalDistance);
+        }
+    }
+}
+
+class BrandesWorker {
+    // Per-thread scratch and partial sums; dist doubles as the visited marker and is reset per source
+    int[] order;
+    int[] dist;
+    double[] sigma;
+    double[] delta;
+    double[] betweenness;
+    double[] distanceSum;
+    int[] reached;
+
+    public BrandesWorker(int n) {
+        order = new int[n];
+        dist = new int[n];
+        Arrays.fill(dist, -1);
+        sigma = new double[n];
+        delta = new double[n];
+        betweenness = new double[n];
+        distanceSum = new double[n];
+        reached = new int[n];
+    }
+
+    public void accumulate(CSRGraph graph, int source) {
+        int head = 0;
+        int tail = 0;
+        order[tail++] = source;
+        dist[source] = 0;
+        sigma[source] = 1;
+        while (head < tail) {
+            int v = order[head++];
+            int next = dist[v] + 1;
+            for (int i = graph.offsets[v]; i < graph.offsets[v + 1]; i++) {
+                int w = graph.neighbors[i];
+                if (dist[w] < 0) {
+                    dist[w] = next;
+                    order[tail++] = w;
+                }
+                if (dist[w] == next) {
+                    sigma[w] += sigma[v];
+                }
+            }
+        }
+
+        // Walk back in reverse BFS order; predecessors are the neighbours exactly one level closer
+        for (int i = tail - 1; i >= 0; i--) {
+            int w = order[i];
+            int previous = dist[w] - 1;
+            double share = (1 + delta[w]) / sigma[w];
+            for (int j = graph.offsets[w]; j < graph.offsets[w + 1]; j++) {
+                int v = graph.neighbors[j];
+                if (dist[v] == previous) {
+                    delta[v] += sigma[v] * share;
+                }
+            }
+            if (w != source) {
+                betweenness[w] += delta[w];
+            }
+            distanceSum[w] += dist[w];
+            reached[w]++;
+        }
+
+        for (int i = 0; i < tail; i++) {
+            int w = order[i];
+            dist[w] = -1;
+            sigma[w] = 0;
+            delta[w] = 0;
+        }
+    }
+}
+
+class FollowGraph {
+    // Directed follow edges: out rows list who a user follows, in rows list their followers
+    final CSRGraph out;
+    final CSRGraph in;
+    long version;
+
+    public FollowGraph(CSRGraph out, CSRGraph in) {
+        this.out = out;
+        this.in = in;
+    }
+
+    public static FollowGraph fromRegistry(UserRegistry registry) {
+        return new FollowGraph(CSRGraph.fromRows(registry, user -> user.follows),
+                CSRGraph.fromRows(registry, user -> user.followers));
+    }
+
+    // Same scheme as the friendship snapshot: only the queued rows are re-read, into overlays on both sides
+    public FollowGraph withChangedRows(UserRegistry registry, ChangeQueue changedFollows, ChangeQueue changedFollowers) {
+        return new FollowGraph(out.withChangedRows(registry, user -> user.follows, changedFollows),
+                in.withChangedRows(registry, user -> user.followers, changedFollowers));
+    }
+
+    public FollowGraph compact() {
+        if (isFlat()) {
+            return this;
+        }
+        FollowGraph flat = new FollowGraph(out.compact(), in.compact());
+        flat.version = version;
+        return flat;
+    }
+
+    public FollowGraph rebase(FollowGraph from, FollowGraph compacted) {
+        CSRGraph rebasedOut = out.rebase(from.out, compacted.out);
+        CSRGraph rebasedIn = in.rebase(from.in, compacted.in);
+        if (rebasedOut == null || rebasedIn == null) {
+            return null;
+        }
+        FollowGraph rebased = new FollowGraph(rebasedOut, rebasedIn);
+        rebased.version = version;
+        return rebased;
+    }
+
+    public boolean isFlat() {
+        return out.isFlat() && in.isFlat();
+    }
+
+    public int nodeCount() {
+        return out.nodeCount();
+    }
+}
+
+class PageRank {
+    static final int CHUNKS_PER_THREAD = 4;
+
+    double damping;
+    int maxIterations;
+    double tolerance;
+    int threads;
+    int iterations;
+
+    public PageRank(double damping, int maxIterations, double tolerance, int threads) {
+        this.damping = damping;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.threads = Math.max(1, threads);
+    }
+
+    // Pull-based power iteration: each node sums its followers' shares, so sweeps need no atomics
+    public double[] compute(FollowGraph graph) {
+        int n = graph.nodeCount();
+        double[] rank = new double[n];
+        double[] next = new double[n];
+        double[] share = new double[n];
+        iterations = 0;
+        if (n == 0) {
+            return rank;
+        }
+        Arrays.fill(rank, 1.0 / n);
+        int[] bounds = graph.in.balancedBounds(threads == 1 ? 1 : threads * CHUNKS_PER_THREAD);
+        int[] outBounds = ParallelRange.evenBounds(n, bounds.length - 1);
+        double[] partialDangling = new double[outBounds.length - 1];
+        double[] partialChange = new double[bounds.length - 1];
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        while (iterations < maxIterations) {
+            double[] current = rank;
+            double[] target = next;
+            ParallelRange.forEachChunk(pool, outBounds, (chunk, from, to) -> {
+                double dangling = 0;
+                for (int u = from; u < to; u++) {
+                    int outDegree = graph.out.degree(u);
+                    if (outDegree == 0) {
+                        dangling += current[u];
+                        share[u] = 0;
+                    } else {
+                        share[u] = current[u] / outDegree;
+                    }
+                }
+                partialDangling[chunk] = dangling;
+            });
+            double dangling = 0;
+            for (double partial : partialDangling) {
+                dangling += partial;
+            }
+            // Rank held by accounts that follow nobody is spread evenly, like the teleport
+            double base = (1 - damping) / n + damping * dangling / n;
+            ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+                double change = 0;
+                for (int v = from; v < to; v++) {
+                    double sum = 0;
+                    for (int i = graph.in.offsets[v]; i < graph.in.offsets[v + 1]; i++) {
+                        sum += share[graph.in.neighbors[i]];
+                    }
+                    target[v] = base + damping * sum;
+                    change += Math.abs(target[v] - current[v]);
+                }
+                partialChange[chunk] = change;
+            });
+            iterations++;
+            rank = target;
+            next = current;
+            double change = 0;
+            for (double partial : partialChange) {
+                change += partial;
+            }
+            if (change < tolerance) {
+                break;
+            }
+        }
+        return rank;
+    }
+}
+
+class PersonalizedPageRank {
+    // Forward push from one source; work is bounded by the residual threshold, not by the graph size
+    FollowGraph graph;
+    double[] estimate = new double[0];
+    double[] residual = new double[0];
+    int[] touched = new int[0];
+    int touchedSize;
+    int[] queue = new int[0];
+    boolean[] queued = new boolean[0];
+    TopKHeap heap;
+    int lastPushes;
+
+    public PersonalizedPageRank(FollowGraph graph) {
+        heap = new TopKHeap(0);
+        use(graph);
+    }
+
+    // Points the engine at another version of the follow graph, growing the scratch with headroom only when
+    // users were added. Estimates and residuals are cleared lazily through touched, so they are carried over
+    public PersonalizedPageRank use(FollowGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        if (n > queue.length) {
+            int size = Math.max(n, queue.length + (queue.length >> 1));
+            estimate = Arrays.copyOf(estimate, size);
+            residual = Arrays.copyOf(residual, size);
+            touched = Arrays.copyOf(touched, size);
+            queue = new int[size];
+            queued = Arrays.copyOf(queued, size);
+        }
+        return this;
+    }
+
+    // Keeps the k accounts with the highest personalised rank that the source doesn't already follow
+    public int recommend(int source, double alpha, double epsilon, int k) {
+        if (heap.capacity() != k) {
+            heap = new TopKHeap(k);
+        }
+        heap.clear();
+        // A user registered after this version was taken follows no one in it yet
+        if (source >= graph.nodeCount()) {
+            lastPushes = 0;
+            return 0;
+        }
+        push(source, alpha, epsilon);
+        for (int i = 0; i < touchedSize; i++) {
+            int v = touched[i];
+            if (v != source && estimate[v] > 0 && !graph.out.hasEdge(source, v)) {
+                heap.offer(v, estimate[v]);
+            }
+        }
+        heap.sortDescending();
+        return heap.size;
+    }
+
+    public void push(int source, double alpha, double epsilon) {
+        for (int i = 0; i < touchedSize; i++) {
+            estimate[touched[i]] = 0;
+            residual[touched[i]] = 0;
+        }
+        touchedSize = 0;
+        lastPushes = 0;
+        int n = queue.length;
+        int head = 0;
+        int size = 0;
+        touch(source);
+        residual[source] = 1;
+        queue[0] = source;
+        queued[source] = true;
+        size = 1;
+        while (size > 0) {
+            int u = queue[head];
+            head = head + 1 == n ? 0 : head + 1;
+            size--;
+            queued[u] = false;
+            int outDegree = graph.out.degree(u);
+            double mass = residual[u];
+            if (mass < epsilon * Math.max(1, outDegree)) {
+                continue;
+            }
+            lastPushes++;
+            estimate[u] += alpha * mass;
+            residual[u] = 0;
+            double spread = (1 - alpha) * mass;
+            if (outDegree == 0) {
+                // Dead end: the walk restarts at the source
+                residual[source] += spread;
+                if (!queued[source]) {
+                    queue[(head + size++) % n] = source;
+                    queued[source] = true;
+                }
+                continue;
+            }
+            double share = spread / outDegree;
+            int[] row = graph.out.row(u);
+            int rowEnd = graph.out.end(u);
+            for (int i = graph.out.start(u); i < rowEnd; i++) {
+                int v = row[i];
+                if (residual[v] == 0 && estimate[v] == 0) {
+                    touch(v);
+                }
+                residual[v] += share;
+                if (!queued[v] && residual[v] >= epsilon * Math.max(1, graph.out.degree(v))) {
+                    queue[(head + size++) % n] = v;
+                    queued[v] = true;
+                }
+            }
+        }
+    }
+
+    private void touch(int v) {
+        touched[touchedSize++] = v;
+    }
+
+    public int resultId(int rank) {
+        return heap.ids[rank];
+    }
+
+    public double resultScore(int rank) {
+        return heap.scores[rank];
+    }
+}
+
+class ConnectedComponents {
+    int threads;
+    int[] component;
+    int count;
+
+    public ConnectedComponents(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Lock-free union-find: roots are only ever linked under a smaller id, so parent[x] <= x and no cycle can form.
+    // Afterwards component[u] is the smallest user id in u's component
+    public void compute(CSRGraph graph) {
+        int n = graph.nodeCount();
+        AtomicIntegerArray parent = new AtomicIntegerArray(n);
+        for (int u = 0; u < n; u++) {
+            parent.set(u, u);
+        }
+        int[] bounds = graph.balancedBounds(threads == 1 ? 1 : threads * EigenvectorCentrality.CHUNKS_PER_THREAD);
+        int[] partialRoots = new int[bounds.length - 1];
+        component = new int[n];
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+            for (int u = from; u < to; u++) {
+                for (int i = graph.offsets[u]; i < graph.offsets[u + 1]; i++) {
+                    int v = graph.neighbors[i];
+                    // Each friendship is stored in both rows; one direction is enough
+                    if (v > u) {
+                        union(parent, u, v);
+                    }
+                }
+            }
+        });
+        ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+            int roots = 0;
+            for (int u = from; u < to; u++) {
+                component[u] = find(parent, u);
+                if (component[u] == u) {
+                    roots++;
+                }
+            }
+            partialRoots[chunk] = roots;
+        });
+        count = 0;
+        for (int roots : partialRoots) {
+            count += roots;
+        }
+    }
+
+    // Path halving: every other node on the way up is pointed at its grandparent
+    private static int find(AtomicIntegerArray parent, int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x) {
+                return x;
+            }
+            int grandparent = parent.get(p);
+            if (grandparent != p) {
+                parent.compareAndSet(x, p, grandparent);
+            }
+            x = grandparent;
+        }
+    }
+
+    private static void union(AtomicIntegerArray parent, int u, int v) {
+        while (true) {
+            u = find(parent, u);
+            v = find(parent, v);
+            if (u == v) {
+                return;
+            }
+            if (u < v) {
+                int swap = u;
+                u = v;
+                v = swap;
+            }
+            // Fails only if another thread linked u meanwhile; retry from the new roots
+            if (parent.compareAndSet(u, u, v)) {
+                return;
+            }
+        }
+    }
+}
+
+class TriangleCounter {
+    int threads;
+    long[] triangles;
+    double[] clustering;
+    long totalTriangles;
+    double averageClustering;
+    double transitivity;
+
+    public TriangleCounter(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Each node intersects its row with every neighbour's row; a triangle through u shows up twice in u's sum.
+    // Counting per node instead of per oriented edge keeps every write local to one chunk
+    public void compute(CSRGraph graph) {
+        int n = graph.nodeCount();
+        triangles = new long[n];
+        clustering = new double[n];
+        int[] bounds = graph.balancedBounds(threads == 1 ? 1 : threads * EigenvectorCentrality.CHUNKS_PER_THREAD);
+        long[] partialTriangles = new long[bounds.length - 1];
+        long[] partialWedges = new long[bounds.length - 1];
+        double[] partialClustering = new double[bounds.length - 1];
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+            long triangleSum = 0;
+            long wedgeSum = 0;
+            double clusteringSum = 0;
+            for (int u = from; u < to; u++) {
+                long closed = 0;
+                for (int i = graph.offsets[u]; i < graph.offsets[u + 1]; i++) {
+                    closed += graph.intersectionCount(u, graph.neighbors[i]);
+                }
+                triangles[u] = closed / 2;
+                long degree = graph.degree(u);
+                long wedges = degree * (degree - 1) / 2;
+                clustering[u] = wedges == 0 ? 0 : (double) triangles[u] / wedges;
+                triangleSum += triangles[u];
+                wedgeSum += wedges;
+                clusteringSum += clustering[u];
+            }
+            partialTriangles[chunk] = triangleSum;
+            partialWedges[chunk] = wedgeSum;
+            partialClustering[chunk] = clusteringSum;
+        });
+        long triangleSum = 0;
+        long wedgeSum = 0;
+        double clusteringSum = 0;
+        for (int chunk = 0; chunk < bounds.length - 1; chunk++) {
+            triangleSum += partialTriangles[chunk];
+            wedgeSum += partialWedges[chunk];
+            clusteringSum += partialClustering[chunk];
+        }
+        // Every triangle is counted once at each of its three corners
+        totalTriangles = triangleSum / 3;
+        transitivity = wedgeSum == 0 ? 0 : (double) triangleSum / wedgeSum;
+        averageClustering = n == 0 ? 0 : clusteringSum / n;
+    }
+}
+
+class LabelPropagation {
+    int threads;
+    int maxIterations;
+    long seed;
+    int[] community;
+    int count;
+    int iterations;
+
+    public LabelPropagation(int threads, int maxIterations, long seed) {
+        this.threads = Math.max(1, threads);
+        this.maxIterations = maxIterations;
+        this.seed = seed;
+    }
+
+    // Asynchronous updates: a chunk sees labels other chunks already moved this sweep, which avoids the
+    // two-colour oscillation of synchronous propagation. Stops once a sweep changes no label
+    public void compute(CSRGraph graph) {
+        int n = graph.nodeCount();
+        AtomicIntegerArray labels = new AtomicIntegerArray(n);
+        for (int u = 0; u < n; u++) {
+            labels.set(u, u);
+        }
+        int[] bounds = graph.balancedBounds(threads == 1 ? 1 : threads * EigenvectorCentrality.CHUNKS_PER_THREAD);
+        int[] partialChanged = new int[bounds.length - 1];
+        // Workers are n-sized and belong to this call: a chunk borrows an idle one or makes its own, so none
+        // stays with the pool's threads once the call returns
+        Queue<LabelWorker> idle = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = ParallelRange.pool(threads);
+        iterations = 0;
+        while (iterations < maxIterations) {
+            ParallelRange.forEachChunk(pool, bounds, (chunk, from, to) -> {
+                LabelWorker worker = idle.poll();
+                if (worker == null) {
+                    worker = new LabelWorker(n, seed);
+                }
+                int changed = 0;
+                for (int u = from; u < to; u++) {
+                    if (worker.relabel(graph, labels, u)) {
+                        changed++;
+                    }
+                }
+                partialChanged[chunk] = changed;
+                idle.add(worker);
+            });
+            iterations++;
+            int changed = 0;
+            for (int partial : partialChanged) {
+                changed += partial;
+            }
+            if (changed == 0) {
+                break;
+            }
+        }
+        // The pool can still hold a finished task, and through it this queue
+        idle.clear();
+
+        // Renumber labels densely in order of first appearance
+        community = new int[n];
+        int[] remap = new int[n];
+        Arrays.fill(remap, -1);
+        count = 0;
+        for (int u = 0; u < n; u++) {
+            int label = labels.get(u);
+            if (remap[label] < 0) {
+                remap[label] = count++;
+            }
+            community[u] = remap[label];
+        }
+    }
+}
+
+class LabelWorker {
+    // One chunk's label histogram at a time; only the slots listed in seen are non-zero between calls
+    int[] counts;
+    int[] seen;
+    SplittableRandom random;
+
+    public LabelWorker(int n, long seed) {
+        counts = new int[n];
+        seen = new int[n];
+        random = new SplittableRandom(seed ^ Thread.currentThread().getId());
+    }
+
+    // Moves u to the label most common among its friends; keeps its own label whenever that is among the most
+    // common, so settled nodes stay put, and breaks remaining ties at random
+    public boolean relabel(CSRGraph graph, AtomicIntegerArray labels, int u) {
+        if (graph.degree(u) == 0) {
+            return false;
+        }
+        int distinct = 0;
+        int best = 0;
+        for (int i = graph.offsets[u]; i < graph.offsets[u + 1]; i++) {
+            int label = labels.get(graph.neighbors[i]);
+            if (counts[label]++ == 0) {
+                seen[distinct++] = label;
+            }
+            best = Math.max(best, counts[label]);
+        }
+        int current = labels.get(u);
+        int chosen = current;
+        if (counts[current] != best) {
+            int ties = 0;
+            for (int i = 0; i < distinct; i++) {
+                int label = seen[i];
+                if (counts[label] == best && random.nextInt(++ties) == 0) {
+                    chosen = label;
+                }
+            }
+        }
+        for (int i = 0; i < distinct; i++) {
+            counts[seen[i]] = 0;
+        }
+        if (chosen == current) {
+            return false;
+        }
+        labels.set(u, chosen);
+        return true;
+    }
+}
+
+class Histogram {
+    // Log-linear buckets, HDR style: values below 2^SUB_BITS get a bucket each, and every power of two above is
+    // split into 2^SUB_BITS linear sub-buckets, so a reported value is within 1/16 of what was recorded
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    final String name;
+    final String unit;
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final LongAdder count = new LongAdder();
+    final LongAdder sum = new LongAdder();
+    final AtomicLong max = new AtomicLong();
+
+    public Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    // start comes from Metrics.start(), which is 0 while metrics are off
+    public void recordSince(long start) {
+        if (start != 0) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the given percentile, capped at the largest value seen
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long upper = i + 1 < BUCKETS ? lowestValue(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+}
+
+class Metrics {
+    // Checked on every instrumented path; while off, a call pays one volatile read and a branch
+    static volatile boolean enabled = Boolean.getBoolean("socialnetwork.metrics");
+
+    static final List<Histogram> ALL = new ArrayList<>();
+
+    static final Histogram LOOKUP = latency("lookup");
+    static final Histogram ADD_FRIEND = latency("addFriend");
+    static final Histogram REMOVE_FRIEND = latency("removeFriend");
+    static final Histogram ADD_POST = latency("addPost");
+    static final Histogram LIKE = latency("like");
+    static final Histogram FOLLOW = latency("follow");
+    static final Histogram UNFOLLOW = latency("unfollow");
+    static final Histogram HOME_FEED = latency("homeFeed");
+    static final Histogram SHORTEST_PATH = latency("shortestPath");
+    static final Histogram BFS_DEPTH = values("shortestPath.depth", "hops");
+    static final Histogram BFS_VISITED = values("shortestPath.visited", "users");
+    static final Histogram SUGGEST_FRIENDS = latency("suggestFriends");
+    static final Histogram CANDIDATES = values("suggestFriends.candidates", "users");
+    static final Histogram SUGGEST_FOLLOWS = latency("suggestFollows");
+    static final Histogram PUSHES = values("suggestFollows.pushes", "pushes");
+    static final Histogram EIGENVECTOR = latency("eigenvector");
+    static final Histogram EIGENVECTOR_ITERATIONS = values("eigenvector.iterations", "sweeps");
+    static final Histogram PAGE_RANK = latency("pageRank");
+    static final Histogram PAGE_RANK_ITERATIONS = values("pageRank.iterations", "sweeps");
+    static final Histogram BETWEENNESS = latency("betweenness");
+    static final Histogram SERVER_BATCH = values("server.batch", "requests");
+
+    static ScheduledExecutorService reporter;
+
+    private static Histogram latency(String name) {
+        return values(name, "ns");
+    }
+
+    private static Histogram values(String name, String unit) {
+        Histogram histogram = new Histogram(name, unit);
+        ALL.add(histogram);
+        return histogram;
+    }
+
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void reset() {
+        for (Histogram histogram : ALL) {
+            histogram.reset();
+        }
+    }
+
+    public static String dump() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-28s %10s %12s %12s %12s %12s %12s %s%n",
+                "metric", "count", "mean", "p50", "p99", "p99.9", "max", "unit"));
+        for (Histogram histogram : ALL) {
+            if (histogram.count() == 0) {
+                continue;
+            }
+            text.append(String.format("%-28s %10d %12.1f %12d %12d %12d %12d %s%n", histogram.name, histogram.count(),
+                    histogram.mean(), histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9),
+                    histogram.max(), histogram.unit));
+        }
+        return text.toString();
+    }
+
+    public static synchronized void startReporter(PrintStream out, long period, TimeUnit unit) {
+        stopReporter();
+        reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> out.print(dump()), period, period, unit);
+    }
+
+    public static synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    public static void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(MetricsMBean.OBJECT_NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(), name);
+        }
+    }
+}
+
+// Dynamic rather than standard MBean, so the attribute list follows Metrics.ALL and the class needn't be public.
+// Attributes are "Enabled" plus "<metric>.<stat>" for every histogram; operations are reset and dump
+class MetricsMBean implements DynamicMBean {
+    static final String OBJECT_NAME = "SocialNetwork:type=Metrics";
+    static final String[] STATS = {"count", "mean", "p50", "p99", "p999", "max"};
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if (attribute.equals("Enabled")) {
+            return Metrics.enabled;
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            String metric = attribute.substring(0, dot);
+            for (Histogram histogram : Metrics.ALL) {
+                if (histogram.name.equals(metric)) {
+                    switch (attribute.substring(dot + 1)) {
+                        case "count":
+                            return histogram.count();
+                        case "mean":
+                            return histogram.mean();
+                        case "p50":
+                            return histogram.percentile(50);
+                        case "p99":
+                            return histogram.percentile(99);
+                        case "p999":
+                            return histogram.percentile(99.9);
+                        case "max":
+                            return histogram.max();
+                        default:
+                            break;
+                    }
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+        if (!attribute.getName().equals("Enabled")) {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+        if (!(attribute.getValue() instanceof Boolean)) {
+            throw new InvalidAttributeValueException("Enabled takes a boolean");
+        }
+        Metrics.enabled = (Boolean) attribute.getValue();
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList values = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                values.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown names are left out, as the DynamicMBean contract allows
+            }
+        }
+        return values;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        AttributeList set = new AttributeList();
+        for (Attribute attribute : attributes.asList()) {
+            try {
+                setAttribute(attribute);
+                set.add(attribute);
+            } catch (JMException e) {
+                // Skipped, as the DynamicMBean contract allows
+            }
+        }
+        return set;
+    }
+
+    public Object invoke(String operation, Object[] params, String[] signature) throws ReflectionException {
+        switch (operation) {
+            case "reset":
+                Metrics.reset();
+                return null;
+            case "dump":
+                return Metrics.dump();
+            default:
+                throw new ReflectionException(new NoSuchMethodException(operation));
+        }
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(new MBeanAttributeInfo("Enabled", "boolean", "Whether operations are being recorded", true, true, true));
+        for (Histogram histogram : Metrics.ALL) {
+            for (String stat : STATS) {
+                String type = stat.equals("mean") ? "double" : "long";
+                attributes.add(new MBeanAttributeInfo(histogram.name + "." + stat, type,
+                        stat + " of " + histogram.name + " (" + histogram.unit + ")", true, false, false));
+            }
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "Clears every histogram", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+            new MBeanOperationInfo("dump", "Text table of every non-empty histogram", new MBeanParameterInfo[0],
+                    "java.lang.String", MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(MetricsMBean.class.getName(), "Social network operation metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+}
+
+class QueryProtocol {
+    // Frames in both directions are an int length of what follows, then an int request id the client chooses
+    // and gets back unchanged. A request continues with an opcode and its arguments; a response with a status,
+    // then the result when the status is OK or a message otherwise. Strings are an int byte count followed by
+    // UTF-8, as in the snapshot and log files; lists are an int count followed by the entries
+    static final int MAX_FRAME = 1 << 20;
+    static final int MIN_REQUEST = 5;
+    static final int MAX_RESULTS = 1000;
+
+    static final byte PING = 0;
+    static final byte LOOKUP = 1;
+    static final byte ADD_USER = 2;
+    static final byte ADD_FRIEND = 3;
+    static final byte REMOVE_FRIEND = 4;
+    static final byte FOLLOW = 5;
+    static final byte UNFOLLOW = 6;
+    static final byte ADD_POST = 7;
+    static final byte LIKE = 8;
+    static final byte UNLIKE = 9;
+    static final byte MUTUALS = 10;
+    static final byte SHORTEST_PATH = 11;
+    static final byte HOME_FEED = 12;
+    static final byte SUGGEST_FRIENDS = 13;
+    static final byte SUGGEST_FOLLOWS = 14;
+    static final byte TOP_DEGREE = 15;
+    static final byte TOP_EIGENVECTOR = 16;
+    static final byte TOP_FOLLOWED = 17;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte INVALID = 2;
+    static final byte BAD_REQUEST = 3;
+    static final byte ERROR = 4;
+
+    public static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static int getLimit(ByteBuffer in) {
+        int limit = in.getInt();
+        if (limit < 0 || limit > MAX_RESULTS) {
+            throw new IllegalArgumentException("Result limit must be between 0 and " + MAX_RESULTS);
+        }
+        return limit;
+    }
+}
+
+class FrameWriter {
+    // Growable buffer that response frames are encoded into back to back
+    ByteBuffer buffer;
+    int frameStart;
+
+    public FrameWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    public void begin(int requestId, byte status) {
+        frameStart = buffer.position();
+        putInt(0);
+        putInt(requestId);
+        putByte(status);
+    }
+
+    // Drops whatever the current frame's result wrote and restarts it with another status
+    public void restart(int requestId, byte status) {
+        buffer.position(frameStart);
+        begin(requestId, status);
+    }
+
+    public void end() {
+        buffer.putInt(frameStart, buffer.position() - frameStart - Integer.BYTES);
+    }
+
+    public void putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void putInt(int value) {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    public void putLong(long value) {
+        ensure(Long.BYTES);
+        buffer.putLong(value);
+    }
+
+    public void putDouble(double value) {
+        ensure(Double.BYTES);
+        buffer.putDouble(value);
+    }
+
+    public void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(Integer.BYTES + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    public ByteBuffer finish() {
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
+
+class QueryHandler {
+    final SocialNetwork2 network;
+
+    public QueryHandler(SocialNetwork2 network) {
+        this.network = network;
+    }
+
+    // Runs the whole frames in batch one after another, appending one response frame per request
+    public void execute(ByteBuffer batch, FrameWriter out) {
+        while (batch.remaining() >= Integer.BYTES) {
+            int length = batch.getInt();
+            ByteBuffer request = batch.slice(batch.position(), length);
+            batch.position(batch.position() + length);
+            int requestId = request.getInt();
+            byte opcode = request.get();
+            out.begin(requestId, QueryProtocol.OK);
+            try {
+                dispatch(opcode, request, out);
+            } catch (UserNotFoundException e) {
+                fail(out, requestId, QueryProtocol.NOT_FOUND, e.getMessage());
+            } catch (InvalidInputException e) {
+                fail(out, requestId, QueryProtocol.INVALID, e.getMessage());
+            } catch (BufferUnderflowException e) {
+                fail(out, requestId, QueryProtocol.BAD_REQUEST, "Truncated request.");
+            } catch (IllegalArgumentException e) {
+                fail(out, requestId, QueryProtocol.BAD_REQUEST, e.getMessage());
+            } catch (RuntimeException e) {
+                fail(out, requestId, QueryProtocol.ERROR, String.valueOf(e));
+            }
+            out.end();
+        }
+    }
+
+    private static void fail(FrameWriter out, int requestId, byte status, String message) {
+        out.restart(requestId, status);
+        out.putString(message);
+    }
+
+    private void dispatch(byte opcode, ByteBuffer in, FrameWriter out) throws UserNotFoundException, InvalidInputException {
+        switch (opcode) {
+            case QueryProtocol.PING:
+                break;
+            case QueryProtocol.LOOKUP: {
+                User user = require(QueryProtocol.getString(in));
+                out.putInt(user.id);
+                out.putInt(network.centrality.degree(user.id));
+                out.putInt(user.followers.size());
+                out.putInt(user.follows.size());
+                out.putInt(user.posts.size());
+                break;
+            }
+            case QueryProtocol.ADD_USER:
+                network.addUser(QueryProtocol.getString(in));
+                break;
+            case QueryProtocol.ADD_FRIEND:
+                network.applyAddFriend(require(QueryProtocol.getString(in)), require(QueryProtocol.getString(in)));
+                break;
+            case QueryProtocol.REMOVE_FRIEND:
+                network.applyRemoveFriend(require(QueryProtocol.getString(in)), require(QueryProtocol.getString(in)));
+                break;
+            case QueryProtocol.FOLLOW:
+                network.applyFollow(require(QueryProtocol.getString(in)), require(QueryProtocol.getString(in)));
+                break;
+            case QueryProtocol.UNFOLLOW:
+                network.applyUnfollow(require(QueryProtocol.getString(in)), require(QueryProtocol.getString(in)));
+                break;
+            case QueryProtocol.ADD_POST: {
+                User user = require(QueryProtocol.getString(in));
+                out.putLong(network.applyAddPost(user, -1, System.currentTimeMillis(), QueryProtocol.getString(in)).id);
+                break;
+            }
+            case QueryProtocol.LIKE:
+            case QueryProtocol.UNLIKE: {
+                String name = QueryProtocol.getString(in);
+                long postId = in.getLong();
+                boolean changed = opcode == QueryProtocol.LIKE
+                        ? network.likePost(name, postId) : network.unlikePost(name, postId);
+                out.putByte(changed ? 1 : 0);
+                break;
+            }
+            case QueryProtocol.MUTUALS:
+                putStrings(out, network.mutualFriends(QueryProtocol.getString(in), QueryProtocol.getString(in)));
+                break;
+            case QueryProtocol.SHORTEST_PATH:
+                putStrings(out, network.shortestPath(QueryProtocol.getString(in), QueryProtocol.getString(in), in.getInt()));
+                break;
+            case QueryProtocol.HOME_FEED: {
+                List<Post> feed = network.homeFeed(QueryProtocol.getString(in), QueryProtocol.getLimit(in));
+                out.putInt(feed.size());
+                for (Post post : feed) {
+                    out.putLong(post.id);
+                    out.putString(post.author.name);
+                    out.putLong(post.timestamp);
+                    out.putString(post.post);
+                    out.putLong(post.likeCount());
+                }
+                break;
+            }
+            case QueryProtocol.SUGGEST_FRIENDS: {
+                String name = QueryProtocol.getString(in);
+                int scorer = in.get();
+                if (scorer < 0 || scorer >= LinkScorer.values().length) {
+                    throw new IllegalArgumentException("Unknown scorer " + scorer);
+                }
+                List<Recommendation> suggestions = network.suggestFriends(name, LinkScorer.values()[scorer], QueryProtocol.getLimit(in));
+                out.putInt(suggestions.size());
+                for (Recommendation suggestion : suggestions) {
+                    out.putString(suggestion.name);
+                    out.putDouble(suggestion.score);
+                    out.putInt(suggestion.mutualFriends);
+                }
+                break;
+            }
+            case QueryProtocol.SUGGEST_FOLLOWS: {
+                List<Recommendation> suggestions = network.suggestFollows(QueryProtocol.getString(in), QueryProtocol.getLimit(in));
+                out.putInt(suggestions.size());
+                for (Recommendation suggestion : suggestions) {
+                    out.putString(suggestion.name);
+                    out.putDouble(suggestion.score);
+                }
+                break;
+            }
+            case QueryProtocol.TOP_DEGREE:
+                putRanking(out, network.topDegreeCentrality(QueryProtocol.getLimit(in)));
+                break;
+            case QueryProtocol.TOP_EIGENVECTOR:
+                putRanking(out, network.topEigenvectorCentrality(QueryProtocol.getLimit(in)));
+                break;
+            case QueryProtocol.TOP_FOLLOWED:
+                putRanking(out, network.topFollowed(QueryProtocol.getLimit(in)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+    }
+
+    private User require(String name) throws UserNotFoundException {
+        User user = network.getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found: " + name);
+        }
+        return user;
+    }
+
+    private static void putStrings(FrameWriter out, List<String> values) {
+        out.putInt(values.size());
+        for (String value : values) {
+            out.putString(value);
+        }
+    }
+
+    private static void putRanking(FrameWriter out, List<RankedUser> ranking) {
+        out.putInt(ranking.size());
+        for (RankedUser entry : ranking) {
+            out.putString(entry.name);
+            out.putDouble(entry.score);
+        }
+    }
+}
+
+class QueryConnection {
+    final SocketChannel channel;
+    SelectionKey key;
+    // Bytes received but not yet handed to a worker (write mode)
+    ByteBuffer input;
+    // Response bytes still to be sent (read mode), or null once everything went out
+    ByteBuffer output;
+    // Set by the worker when the batch in flight is done; picked up by the selector thread
+    volatile ByteBuffer completed;
+    boolean busy;
+    boolean closed;
+
+    public QueryConnection(SocketChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.input = ByteBuffer.allocate(bufferSize);
+    }
+}
+
+class QueryServer implements Closeable {
+    // One selector thread does all socket I/O. The complete frames from a client's reads go to a worker as one
+    // batch; a client has at most one batch in flight and its responses must be flushed before the next starts,
+    // so responses come back in request order and a client that stops reading stops being served
+    static final int BUFFER_SIZE = 64 * 1024;
+    // How long accepting stays off after a failed accept, so running out of file descriptors doesn't spin
+    static final long ACCEPT_RETRY_MILLIS = 100;
+
+    final QueryHandler handler;
+    final ServerSocketChannel serverChannel;
+    final SelectionKey acceptKey;
+    final Selector selector;
+    final ExecutorService workers;
+    final Queue<QueryConnection> finished;
+    final LongAdder requests;
+    final LongAdder batches;
+    volatile boolean running;
+    // System.nanoTime() at which accepting resumes after a failed accept; 0 while accepting
+    long acceptRetryAt;
+    Thread selectorThread;
+
+    public QueryServer(SocialNetwork2 network, InetSocketAddress address, int workerThreads) throws IOException {
+        handler = new QueryHandler(network);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), task -> {
+            Thread thread = new Thread(task, "query-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        finished = new ConcurrentLinkedQueue<>();
+        requests = new LongAdder();
+        batches = new LongAdder();
+    }
+
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        running = true;
+        selectorThread = new Thread(this::run, "query-selector");
+        selectorThread.start();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        selectorThread.join();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (acceptRetryAt == 0) {
+                    selector.select();
+                } else {
+                    long waitNanos = acceptRetryAt - System.nanoTime();
+                    // Other sockets' events wake the selector early; accepting stays off until the deadline
+                    if (waitNanos > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    }
+                    if (System.nanoTime() - acceptRetryAt >= 0) {
+                        acceptRetryAt = 0;
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+                QueryConnection done;
+                while ((done = finished.poll()) != null) {
+                    complete(done);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    QueryConnection connection = (QueryConnection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            write(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Query server stopped: " + e);
+            }
+        }
+    }
+
+    // A failed accept or a client that can't be set up costs that client only, never the selector loop
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Usually out of file descriptors; the pending client waits in the backlog for the retry
+                System.err.println("Cannot accept connection: " + e.getMessage());
+                acceptRetryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_RETRY_MILLIS);
+                acceptKey.interestOps(0);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                QueryConnection connection = new QueryConnection(channel, BUFFER_SIZE);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                System.err.println("Cannot set up connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do for a connection that is going away
+                }
+            }
+        }
+    }
+
+    private void read(QueryConnection connection) throws IOException {
+        int read = connection.channel.read(connection.input);
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        dispatch(connection);
+        updateInterest(connection);
+    }
+
+    // Hands every complete frame in the input buffer to a worker, if the client has nothing in flight or unsent
+    private void dispatch(QueryConnection connection) {
+        if (connection.busy || connection.output != null || connection.closed) {
+            return;
+        }
+        ByteBuffer input = connection.input;
+        int end = 0;
+        int frames = 0;
+        int limit = input.position();
+        while (limit - end >= Integer.BYTES) {
+            int length = input.getInt(end);
+            if (length < QueryProtocol.MIN_REQUEST || length > QueryProtocol.MAX_FRAME) {
+                close(connection);
+                return;
+            }
+            if (limit - end - Integer.BYTES < length) {
+                // Make room for a frame bigger than the buffer
+                if (Integer.BYTES + length > input.capacity()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Integer.BYTES + length);
+                    input.flip();
+                    grown.put(input);
+                    connection.input = grown;
+                }
+                break;
+            }
+            end += Integer.BYTES + length;
+            frames++;
+        }
+        if (frames == 0) {
+            return;
+        }
+        input = connection.input;
+        ByteBuffer batch = ByteBuffer.allocate(end);
+        input.flip();
+        input.get(batch.array(), 0, end);
+        input.compact();
+        connection.busy = true;
+        requests.add(frames);
+        batches.increment();
+        if (Metrics.enabled) {
+            Metrics.SERVER_BATCH.record(frames);
+        }
+        workers.execute(() -> {
+            FrameWriter out = new FrameWriter(Math.max(256, batch.capacity()));
+            handler.execute(batch, out);
+            connection.completed = out.finish();
+            finished.add(connection);
+            selector.wakeup();
+        });
+    }
+
+    private void complete(QueryConnection connection) {
+        connection.busy = false;
+        if (connection.closed) {
+            return;
+        }
+        connection.output = connection.completed;
+        connection.completed = null;
+        try {
+            write(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void write(QueryConnection connection) throws IOException {
+        ByteBuffer output = connection.output;
+        if (output != null) {
+            connection.channel.write(output);
+            if (output.hasRemaining()) {
+                updateInterest(connection);
+                return;
+            }
+            connection.output = null;
+        }
+        dispatch(connection);
+        updateInterest(connection);
+    }
+
+    private void updateInterest(QueryConnection connection) {
+        if (connection.closed) {
+            return;
+        }
+        // A full input buffer means the client is ahead of us; stop reading until a batch drains it
+        int ops = (connection.input.hasRemaining() ? SelectionKey.OP_READ : 0)
+                | (connection.output != null ? SelectionKey.OP_WRITE : 0);
+        connection.key.interestOps(ops);
+    }
+
+    private void close(QueryConnection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do for a connection that is going away
+        }
+    }
+
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (selectorThread != null) {
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+}
+
+class SocialNetwork2 {
+    // Reads go straight to the concurrent collections; writes hold the striped lock of every user they touch
+    Map<User, Set<User>> adjacencyList;
+    // Users whose friendship row changed since the last snapshot; writers add them before bumping graphVersion
+    ChangeQueue changedFriends;
+    AtomicBoolean compactingFriends;
+    // Followers whose out row and followed users whose in row changed; writers add them before bumping followVersion
+    ChangeQueue changedFollows;
+    ChangeQueue changedFollowers;
+    AtomicBoolean compactingFollows;
+    UserRegistry registry;
+    StripedLocks locks;
+    AtomicLong graphVersion;
+    volatile CSRGraph snapshot;
+    AtomicLong followVersion;
+    volatile FollowGraph followGraph;
+    ThreadLocal<PersonalizedPageRank> personalizedRanks;
+    CSRGraph baseGraph;
+    ThreadLocal<PathFinder> pathFinders;
+    ThreadLocal<FriendRecommender> recommenders;
+    volatile SuggestionTable suggestionTable;
+    volatile WriteAheadLog wal;
+    CentralityService centrality;
+    FollowerRanking followerRanking;
+    AtomicLong nextPostId;
+    Map<Long, Post> postsById;
+    FeedService feeds;
+
+    static final int LOCK_STRIPES = 1024;
+    static final double PAGE_RANK_DAMPING = 0.85;
+    static final double PUSH_THRESHOLD = 1e-6;
+
+    static final int CELEBRITY_FOLLOWERS = 10000;
+    static final int FEED_CACHE_SIZE = 500;
+    static final int FEED_PAGE_SIZE = 20;
+
+    static final int SUGGESTION_LIMIT = 10;
+    static final int TOP_USERS = 100;
+    static final int SERVER_PORT = 7070;
+    static final String SNAPSHOT_FILE = "network.snapshot";
+    static final String LOG_FILE = "network.log";
+    // A snapshot whose overlay holds more than 1/16 of the rows gets folded into fresh flat arrays
+    static final int COMPACT_FRACTION_SHIFT = 4;
+
+    static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "graph-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SocialNetwork2() {
+        adjacencyList = new ConcurrentHashMap<>();
+        changedFriends = new ChangeQueue();
+        compactingFriends = new AtomicBoolean();
+        registry = new UserRegistry();
+        locks = new StripedLocks(LOCK_STRIPES);
+        graphVersion = new AtomicLong();
+        snapshot = new CSRGraph(new int[1], new int[0]);
+        followVersion = new AtomicLong();
+        changedFollows = new ChangeQueue();
+        changedFollowers = new ChangeQueue();
+        compactingFollows = new AtomicBoolean();
+        followGraph = FollowGraph.fromRegistry(registry);
+        personalizedRanks = new ThreadLocal<>();
+        pathFinders = new ThreadLocal<>();
+        recommenders = new ThreadLocal<>();
+        nextPostId = new AtomicLong();
+        feeds = new FeedService(CELEBRITY_FOLLOWERS, FEED_CACHE_SIZE);
+        postsById = new ConcurrentHashMap<>();
+        centrality = new CentralityService(100, 1e-6, Runtime.getRuntime().availableProcessors());
+        followerRanking = new FollowerRanking();
+    }
+
+    // Immutable compact view of the friendship graph, brought up to date lazily once a mutation bumps graphVersion.
+    // Only the changed rows are re-read, into an overlay over the last flat arrays; once the overlay grows past
+    // its share of the rows it is folded back into flat arrays in the background
+    public CSRGraph snapshot() {
+        CSRGraph graph = snapshot;
+        if (graph.version == graphVersion.get()) {
+            return graph;
+        }
+        synchronized (graphVersion) {
+            graph = snapshot;
+            // Read before draining: every write counted in this version has already marked its users
+            long version = graphVersion.get();
+            if (graph.version != version) {
+                graph = graph.withChangedRows(registry, this::friendsOf, changedFriends);
+                graph.version = version;
+                snapshot = graph;
+                if (overgrown(graph) && compactingFriends.compareAndSet(false, true)) {
+                    CSRGraph from = graph;
+                    COMPACTOR.execute(() -> {
+                        try {
+                            installCompacted(from, from.compact());
+                        } finally {
+                            compactingFriends.set(false);
+                        }
+                    });
+                }
+            }
+            return graph;
+        }
+    }
+
+    // For whole-graph passes, which index the flat arrays directly. Compacting here also spares later readers
+    // the overlay, unless a background compaction got in first
+    public CSRGraph flatSnapshot() {
+        CSRGraph graph = snapshot();
+        if (graph.isFlat()) {
+            return graph;
+        }
+        CSRGraph flat = graph.compact();
+        installCompacted(graph, flat);
+        return flat;
+    }
+
+    private void installCompacted(CSRGraph from, CSRGraph compacted) {
+        synchronized (graphVersion) {
+            CSRGraph rebased = snapshot.rebase(from, compacted);
+            if (rebased != null) {
+                snapshot = rebased;
+            }
+        }
+    }
+
+    private static boolean overgrown(CSRGraph graph) {
+        return graph.overlayRows > Math.max(CSRGraph.ROW_CHUNK, graph.nodeCount() >>> COMPACT_FRACTION_SHIFT);
+    }
+
+    // Directed follow graph in CSR form, brought up to date lazily once a follow, unfollow or new user bumps
+    // followVersion; changed rows go into overlays that are compacted in the background like the friendship ones
+    public FollowGraph followGraph() {
+        FollowGraph graph = followGraph;
+        if (graph.version == followVersion.get()) {
+            return graph;
+        }
+        synchronized (followVersion) {
+            graph = followGraph;
+            long version = followVersion.get();
+            if (graph.version != version) {
+                graph = graph.withChangedRows(registry, changedFollows, changedFollowers);
+                graph.version = version;
+                followGraph = graph;
+                if ((overgrown(graph.out) || overgrown(graph.in)) && compactingFollows.compareAndSet(false, true)) {
+                    FollowGraph from = graph;
+                    COMPACTOR.execute(() -> {
+                        try {
+                            installCompacted(from, from.compact());
+                        } finally {
+                            compactingFollows.set(false);
+                        }
+                    });
+                }
+            }
+            return graph;
+        }
+    }
+
+    // For PageRank, which walks the flat in rows directly
+    public FollowGraph flatFollowGraph() {
+        FollowGraph graph = followGraph();
+        if (graph.isFlat()) {
+            return graph;
+        }
+        FollowGraph flat = graph.compact();
+        installCompacted(graph, flat);
+        return flat;
+    }
+
+    private void installCompacted(FollowGraph from, FollowGraph compacted) {
+        synchronized (followVersion) {
+            FollowGraph rebased = followGraph.rebase(from, compacted);
+            if (rebased != null) {
+                followGraph = rebased;
+            }
+        }
+    }
+
+    // For loaders that fill the follow sets directly instead of going through applyFollow
+    void rebuildFollowGraph() {
+        synchronized (followVersion) {
+            changedFollows.clear();
+            changedFollowers.clear();
+            FollowGraph graph = FollowGraph.fromRegistry(registry);
+            graph.version = followVersion.incrementAndGet();
+            followGraph = graph;
+        }
+    }
+
+    // Scratch engines are per thread, so concurrent readers never share buffers. They outlive snapshots:
+    // a new snapshot only repoints them, and their arrays grow when users were added
+    private PathFinder pathFinder() {
+        CSRGraph graph = snapshot();
+        PathFinder pathFinder = pathFinders.get();
+        if (pathFinder == null) {
+            pathFinder = new PathFinder(graph);
+            pathFinders.set(pathFinder);
+        }
+        return pathFinder.use(graph);
+    }
+
+    private FriendRecommender recommender() {
+        CSRGraph graph = snapshot();
+        FriendRecommender recommender = recommenders.get();
+        if (recommender == null) {
+            recommender = new FriendRecommender(graph);
+            recommenders.set(recommender);
+        }
+        return recommender.use(graph);
+    }
+
+    private Set<User> friendsOf(User user) {
+        return adjacencyList.computeIfAbsent(user, key -> {
+            Set<User> friends = ConcurrentHashMap.newKeySet();
+            CSRGraph base = baseGraph;
+            if (base != null && key.id < base.nodeCount()) {
+                for (int i = base.start(key.id); i < base.end(key.id); i++) {
+                    friends.add(registry.get(base.neighbors[i]));
+                }
+            }
+            return friends;
+        });
+    }
+
+    // Serves the loaded graph as the current snapshot without building a live row per user. The loader registers
+    // users without the version bumps addUser makes, so the follow graph is told to grow to the registry too
+    void setBaseGraph(CSRGraph graph) {
+        baseGraph = graph;
+        synchronized (graphVersion) {
+            changedFriends.clear();
+            graph.version = graphVersion.incrementAndGet();
+            snapshot = graph;
+        }
+        followVersion.incrementAndGet();
+        centrality.reset(graph);
+    }
+
+    public void saveSnapshot(Path file) throws IOException {
+        SnapshotFile.write(this, file);
+    }
+
+    public static SocialNetwork2 loadSnapshot(Path file) throws IOException {
+        return SnapshotFile.read(file);
+    }
+
+    // Recovers the directory's snapshot plus the log written since and keeps appending every write to that log.
+    // Checkpoints (a fresh snapshot, then an empty log) run every socialnetwork.checkpoint.period seconds and when
+    // the JVM exits; -Dsocialnetwork.fsync=false trades durability of the last writes for throughput
+    static SocialNetwork2 openDataDir(Path dataDir) throws IOException {
+        Files.createDirectories(dataDir);
+        Path snapshotFile = dataDir.resolve(SNAPSHOT_FILE);
+        SocialNetwork2 network = recover(snapshotFile, dataDir.resolve(LOG_FILE),
+                Boolean.parseBoolean(System.getProperty("socialnetwork.fsync", "true")));
+        long period = Long.getLong("socialnetwork.checkpoint.period", 300);
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleAtFixedRate(() -> network.checkpointOrReport(snapshotFile), period, period, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // No shutdownNow: interrupting a checkpoint mid-write would close the log's channel under it
+            checkpointer.shutdown();
+            network.checkpointOrReport(snapshotFile);
+            try {
+                network.wal.close();
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Cannot close log: " + e.getMessage());
+            }
+        }, "checkpoint-on-exit"));
+        return network;
+    }
+
+    void checkpointOrReport(Path snapshotFile) {
+        try {
+            checkpoint(snapshotFile);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Checkpoint to " + snapshotFile + " failed: " + e.getMessage());
+        }
+    }
+
+    public static SocialNetwork2 bulkLoad(Path edgeFile, Path namesFile, int threads) throws IOException {
+        return new BulkLoader(threads).load(edgeFile, namesFile);
+    }
+
+    public void addUser(String name) throws InvalidInputException {
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        User user;
+        // Logged before the registry publishes the user, so no write naming it can reach the log ahead of it
+        synchronized (registry) {
+            registry.checkNewName(name);
+            if (log != null) {
+                lsn = log.logUser(WriteAheadLog.ADD_USER, name);
+            }
+            user = registry.register(name);
+            centrality.onUserAdded(user);
+        }
+        // Lookups find the user before these bumps; until then readers' graphs simply don't cover it yet,
+        // which the row accessors and engines treat as a user without edges
+        friendsOf(user);
+        graphVersion.incrementAndGet();
+        followVersion.incrementAndGet();
+        if (log != null) {
+            log.commit(lsn);
+        }
+    }
+
+    public void addFriend(String name1, String name2) throws UserNotFoundException {
+        User user1 = getUserByName(name1);
+        User user2 = getUserByName(name2);
+        if (user1 != null && user2 != null) {
+            applyAddFriend(user1, user2);
+        } else {
+            throw new UserNotFoundException("Invalid user names. Friend not added.");
+        }
+    }
+
+    // Mutations log while still holding their locks so the log order matches the apply order;
+    // the commit (and its fsync) happens after the locks are released so writers can batch up
+    void applyAddFriend(User user1, User user2) {
+        long start = Metrics.start();
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        locks.lock(user1, user2);
+        try {
+            if (friendsOf(user1).add(user2)) {
+                centrality.onFriendshipChanged(user1, 1);
+            }
+            if (friendsOf(user2).add(user1)) {
+                centrality.onFriendshipChanged(user2, 1);
+            }
+            changedFriends.add(user1);
+            changedFriends.add(user2);
+            graphVersion.incrementAndGet();
+            if (log != null) {
+                lsn = log.logPair(WriteAheadLog.ADD_FRIEND, user1.name, user2.name);
+            }
+        } finally {
+            locks.unlock(user1, user2);
+        }
+        if (log != null) {
+            log.commit(lsn);
+        }
+        Metrics.ADD_FRIEND.recordSince(start);
+    }
+
+    void applyRemoveFriend(User user1, User user2) {
+        long start = Metrics.start();
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        locks.lock(user1, user2);
+        try {
+            if (friendsOf(user1).remove(user2)) {
+                centrality.onFriendshipChanged(user1, -1);
+            }
+            if (friendsOf(user2).remove(user1)) {
+                centrality.onFriendshipChanged(user2, -1);
+            }
+            changedFriends.add(user1);
+            changedFriends.add(user2);
+            graphVersion.incrementAndGet();
+            if (log != null) {
+                lsn = log.logPair(WriteAheadLog.REMOVE_FRIEND, user1.name, user2.name);
+            }
+        } finally {
+            locks.unlock(user1, user2);
+        }
+        if (log != null) {
+            log.commit(lsn);
+        }
+        Metrics.REMOVE_FRIEND.recordSince(start);
+    }
+
+    public Post addPost(String name, String postContent) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user != null) {
+            return applyAddPost(user, -1, System.currentTimeMillis(), postContent);
+        } else {
+            throw new UserNotFoundException("User not found. Post not added.");
+        }
+    }
+
+    // postId is -1 for a new post, or the original id when replaying the log
+    Post applyAddPost(User user, long postId, long timestamp, String postContent) {
+        long start = Metrics.start();
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        Post newPost;
+        locks.lock(user);
+        try {
+            long id = postId;
+            if (id < 0) {
+                id = nextPostId.getAndIncrement();
+            } else {
+                nextPostId.accumulateAndGet(id + 1, Math::max);
+            }
+            newPost = new Post(id, user, postContent, timestamp);
+            // Logged before the post is published, so a like of it (under the liker's lock) can't be logged first
+            if (log != null) {
+                lsn = log.logPost(user.name, newPost.id, timestamp, postContent);
+            }
+            postsById.put(newPost.id, newPost);
+            user.posts.append(newPost);
+        } finally {
+            locks.unlock(user);
+        }
+        feeds.onPost(newPost);
+        if (log != null) {
+            log.commit(lsn);
+        }
+        Metrics.ADD_POST.recordSince(start);
+        return newPost;
+    }
+
+    // Likes lock only the liker, which keeps a user's like/unlike order intact in the log
+    // without serialising the many different users liking one viral post
+    boolean applyLike(User liker, Post post, boolean like) {
+        long start = Metrics.start();
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        boolean changed;
+        locks.lock(liker);
+        try {
+            changed = like ? post.like(liker) : post.unlike(liker);
+            if (changed && log != null) {
+                lsn = log.logLike(like ? WriteAheadLog.LIKE : WriteAheadLog.UNLIKE, liker.name, post.id);
+            }
+        } finally {
+            locks.unlock(liker);
+        }
+        if (changed && log != null) {
+            log.commit(lsn);
+        }
+        Metrics.LIKE.recordSince(start);
+        return changed;
+    }
+
+    void applyFollow(User follower, User followed) {
+        long start = Metrics.start();
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        locks.lock(follower, followed);
+        try {
+            follower.addFollow(followed);
+            if (followed.addFollower(follower)) {
+                followerRanking.increment(followed.id);
+            }
+            changedFollows.add(follower);
+            changedFollowers.add(followed);
+            followVersion.incrementAndGet();
+            if (log != null) {
+                lsn = log.logPair(WriteAheadLog.FOLLOW, follower.name, followed.name);
+            }
+        } finally {
+            locks.unlock(follower, followed);
+        }
+        feeds.onFollow(follower);
+        if (log != null) {
+            log.commit(lsn);
+        }
+        Metrics.FOLLOW.recordSince(start);
+    }
+
+    void applyUnfollow(User follower, User followed) {
+        long start = Metrics.start();
+        WriteAheadLog log = wal;
+        long lsn = 0;
+        locks.lock(follower, followed);
+        try {
+            follower.removeFollow(followed);
+            if (followed.removeFollower(follower)) {
+                followerRanking.decrement(followed.id);
+            }
+            changedFollows.add(follower);
+            changedFollowers.add(followed);
+            followVersion.incrementAndGet();
+            if (log != null) {
+                lsn = log.logPair(WriteAheadLog.UNFOLLOW, follower.name, followed.name);
+            }
+        } finally {
+            locks.unlock(follower, followed);
+        }
+        if (log != null) {
+            log.commit(lsn);
+        }
+        Metrics.UNFOLLOW.recordSince(start);
+    }
+
+    // Loads the latest snapshot (if any), replays the log on top and keeps logging every mutation to it
+    public static SocialNetwork2 recover(Path snapshotFile, Path logFile, boolean fsync) throws IOException {
+        SocialNetwork2 network = Files.exists(snapshotFile) ? loadSnapshot(snapshotFile) : new SocialNetwork2();
+        long validLength = WriteAheadLog.replay(logFile, network);
+        network.wal = new WriteAheadLog(logFile, validLength, fsync);
+        return network;
+    }
+
+    // Compacts the log: snapshot the current state, then empty the log, with every writer held off in between
+    public void checkpoint(Path snapshotFile) throws IOException {
+        synchronized (registry) {
+            locks.lockAll();
+            try {
+                saveSnapshot(snapshotFile);
+                WriteAheadLog log = wal;
+                if (log != null) {
+                    log.reset();
+                }
+            } finally {
+                locks.unlockAll();
+            }
+        }
+    }
+
+    // A page of zero posts could never advance the cursor, so a caller looping on hasMore() would spin
+    public PostPage getPosts(String name, int cursor, int limit) throws UserNotFoundException, InvalidInputException {
+        if (limit <= 0) {
+            throw new InvalidInputException("Page limit must be positive.");
+        }
+        User user = getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        return user.posts.page(cursor, limit);
+    }
+
+    public List<Post> homeFeed(String name, int limit) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        long start = Metrics.start();
+        List<Post> feed = feeds.homeFeed(user, limit);
+        Metrics.HOME_FEED.recordSince(start);
+        return feed;
+    }
+
+    public void showHomeFeed(String name) throws UserNotFoundException {
+        List<Post> feed = homeFeed(name, FEED_PAGE_SIZE);
+        System.out.println("Home feed of " + name + ":");
+        for (Post post : feed) {
+            System.out.println(post.author.name + ": " + post.post);
+        }
+    }
+
+    public void showPosts(String name) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user != null) {
+            System.out.println("Posts by " + name + ":");
+            for (int i = 0; i < user.posts.size(); i++) {
+                System.out.println(user.posts.get(i).post);
+            }
+        } else {
+            throw new UserNotFoundException("User not found.");
+        }
+    }
+
+    public void showFriends(String name) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user != null) {
+            System.out.println("Direct friends of " + name + ":");
+            for (User friend : friendsOf(user)) {
+                System.out.println(friend.name);
+            }
+        } else {
+            throw new UserNotFoundException("User not found.");
+        }
+    }
+
+    public void showMutuals(String name1, String name2) throws UserNotFoundException {
+        List<String> mutuals = mutualFriends(name1, name2);
+        System.out.println("Mutual friends of " + name1 + " and " + name2 + ":");
+        for (String mutual : mutuals) {
+            System.out.println(mutual);
+        }
+    }
+
+    public List<String> mutualFriends(String name1, String name2) throws UserNotFoundException {
+        User user1 = getUserByName(name1);
+        User user2 = getUserByName(name2);
+        if (user1 == null || user2 == null) {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+        CSRGraph graph = snapshot();
+        // Count first so the only allocation is the exact-size result
+        int[] ids = new int[graph.intersectionCount(user1.id, user2.id)];
+        graph.intersect(user1.id, user2.id, ids);
+        List<String> mutuals = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            mutuals.add(registry.get(id).name);
+        }
+        return mutuals;
+    }
+
+    public int mutualFriendCount(String name1, String name2) throws UserNotFoundException {
+        User user1 = getUserByName(name1);
+        User user2 = getUserByName(name2);
+        if (user1 == null || user2 == null) {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+        return snapshot().intersectionCount(user1.id, user2.id);
+    }
+
+    // Names along a shortest friendship path, empty when the users are not connected within maxDepth hops
+    public List<String> shortestPath(String name1, String name2, int maxDepth) throws UserNotFoundException {
+        User user1 = getUserByName(name1);
+        User user2 = getUserByName(name2);
+        if (user1 == null || user2 == null) {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+        int[] path = findPath(user1, user2, maxDepth);
+        List<String> names = new ArrayList<>();
+        if (path != null) {
+            for (int id : path) {
+                names.add(registry.get(id).name);
+            }
+        }
+        return names;
+    }
+
+    public int degreesOfSeparation(String name1, String name2, int maxDepth) throws UserNotFoundException {
+        User user1 = getUserByName(name1);
+        User user2 = getUserByName(name2);
+        if (user1 == null || user2 == null) {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+        int[] path = findPath(user1, user2, maxDepth);
+        return path == null ? -1 : path.length - 1;
+    }
+
+    private int[] findPath(User user1, User user2, int maxDepth) {
+        long start = Metrics.start();
+        PathFinder finder = pathFinder();
+        int[] path = finder.shortestPath(user1.id, user2.id, maxDepth);
+        if (start != 0) {
+            Metrics.SHORTEST_PATH.recordSince(start);
+            if (path != null) {
+                Metrics.BFS_DEPTH.record(path.length - 1);
+            }
+            Metrics.BFS_VISITED.record(path != null && path.length == 1 ? 1 : finder.lastVisited);
+        }
+        return path;
+    }
+    
+    public void removeFriend(String name1, String name2) throws UserNotFoundException {
+        User user1 = getUserByName(name1);
+        User user2 = getUserByName(name2);
+        if (user1 != null && user2 != null) {
+            applyRemoveFriend(user1, user2);
+        } else {
+            throw new UserNotFoundException("Invalid user names. Friend not removed.");
+        }
+    }
+
+    User getUserByName(String name) {
+        long start = Metrics.start();
+        User user = registry.get(name);
+        Metrics.LOOKUP.recordSince(start);
+        return user;
+    }
+
+    public void suggestFriendsCommonNeighbor(String name) throws UserNotFoundException {
+        List<Recommendation> suggestions = suggestFriends(name, LinkScorer.COMMON_NEIGHBORS, SUGGESTION_LIMIT);
+        System.out.println("Suggestions for " + name + " using Common Neighbor Algorithm:");
+        for (Recommendation suggestion : suggestions) {
+            System.out.println(suggestion.name + " (Mutual friends: " + suggestion.mutualFriends + ")");
+        }
+    }
+
+    public List<Recommendation> suggestFriends(String name, LinkScorer scorer, int k) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        long start = Metrics.start();
+        FriendRecommender engine = recommender();
+        int found = engine.recommend(user.id, scorer, k);
+        if (start != 0) {
+            Metrics.SUGGEST_FRIENDS.recordSince(start);
+            Metrics.CANDIDATES.record(engine.lastCandidates);
+        }
+        List<Recommendation> suggestions = new ArrayList<>(found);
+        for (int rank = 0; rank < found; rank++) {
+            int id = engine.resultId(rank);
+            suggestions.add(new Recommendation(id, registry.get(id).name, engine.resultScore(rank),
+                    engine.resultMutualFriends(rank)));
+        }
+        return suggestions;
+    }
+
+    // Recomputes suggestions for every user and serves cachedSuggestions from the result until the next run
+    public BatchSuggestionJob precomputeSuggestions(LinkScorer scorer, int k, int threads) {
+        BatchSuggestionJob job = new BatchSuggestionJob(scorer, k, threads);
+        suggestionTable = job.run(snapshot());
+        return job;
+    }
+
+    public void loadSuggestions(Path file) throws IOException {
+        suggestionTable = SuggestionTable.readFrom(file);
+    }
+
+    public List<Recommendation> cachedSuggestions(String name) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        List<Recommendation> suggestions = new ArrayList<>();
+        SuggestionTable table = suggestionTable;
+        if (table == null) {
+            return suggestions;
+        }
+        for (int rank = 0; rank < table.size(user.id); rank++) {
+            int id = table.id(user.id, rank);
+            suggestions.add(new Recommendation(id, registry.get(id).name, table.score(user.id, rank),
+                    table.mutualFriends(user.id, rank)));
+        }
+        return suggestions;
+    }
+    
+    
+    public void showUserDetails(String name) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user != null) {
+            System.out.println("User Details for " + name + ":");
+            System.out.println("Name: " + user.name);
+            System.out.println("Posts:");
+            for (int i = 0; i < user.posts.size(); i++) {
+                System.out.println(user.posts.get(i).post);
+            }
+            System.out.println("Followers:");
+            for (User follower : user.followers) {
+                System.out.println(follower.name);
+            }
+            System.out.println("Follows:");
+            for (User followed : user.follows) {
+                System.out.println(followed.name);
+            }
+            System.out.println("Likes: " + user.getLikes());
+        } else {
+            throw new UserNotFoundException("User not found.");
+        }
+    }
+    
+    // Likes the owner's most recent post
+    public void likePost(String likerName, String postOwnerName) throws UserNotFoundException {
+        User liker = getUserByName(likerName);
+        User postOwner = getUserByName(postOwnerName);
+        if (liker != null && postOwner != null) {
+            int count = postOwner.posts.size();
+            if (count == 0) {
+                System.out.println(postOwnerName + " has no posts to like.");
+            } else if (applyLike(liker, postOwner.posts.get(count - 1), true)) {
+                System.out.println(likerName + " liked " + postOwnerName + "'s post.");
+            } else {
+                System.out.println(likerName + " already liked " + postOwnerName + "'s post.");
+            }
+        } else {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+    }
+
+    public boolean likePost(String likerName, long postId) throws UserNotFoundException, InvalidInputException {
+        User liker = getUserByName(likerName);
+        if (liker == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        return applyLike(liker, getPost(postId), true);
+    }
+
+    public boolean unlikePost(String likerName, long postId) throws UserNotFoundException, InvalidInputException {
+        User liker = getUserByName(likerName);
+        if (liker == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        return applyLike(liker, getPost(postId), false);
+    }
+
+    public long likeCount(long postId) throws InvalidInputException {
+        return getPost(postId).likeCount();
+    }
+
+    private Post getPost(long postId) throws InvalidInputException {
+        Post post = postsById.get(postId);
+        if (post == null) {
+            throw new InvalidInputException("Post " + postId + " not found.");
+        }
+        return post;
+    }
+    
+    public void followUser(String followerName, String followedName) throws UserNotFoundException {
+        User follower = getUserByName(followerName);
+        User followed = getUserByName(followedName);
+        if (follower != null && followed != null) {
+            applyFollow(follower, followed);
+            System.out.println(followerName + " started following " + followedName + ".");
+        } else {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+    }
+    
+    public void unfollowUser(String followerName, String followedName) throws UserNotFoundException {
+        User follower = getUserByName(followerName);
+        User followed = getUserByName(followedName);
+        if (follower != null && followed != null) {
+            applyUnfollow(follower, followed);
+            System.out.println(followerName + " unfollowed " + followedName + ".");
+        } else {
+            throw new UserNotFoundException("Invalid user names.");
+        }
+    }
+
+    public Map<String, Double> calculateDegreeCentrality() {
+        Map<String, Double> degreeCentrality = new HashMap<>();
+        int totalUsers = registry.size();
+
+        for (int u = 0; u < totalUsers; u++) {
+            degreeCentrality.put(registry.get(u).name, centrality.degreeCentrality(u, totalUsers));
+        }
+
+        return degreeCentrality;
+    }
+
+    public double degreeCentrality(String name) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        return centrality.degreeCentrality(user.id, registry.size());
+    }
+
+    public List<RankedUser> topDegreeCentrality(int k) {
+        int totalUsers = registry.size();
+        return toRanking(TopKHeap.select(totalUsers, k, Runtime.getRuntime().availableProcessors(),
+                u -> centrality.degreeCentrality(u, totalUsers)));
+    }
+
+    public List<RankedUser> topEigenvectorCentrality(int k) {
+        double[] scores = centrality.eigenvector(flatSnapshot());
+        return toRanking(TopKHeap.select(scores.length, k, Runtime.getRuntime().availableProcessors(), u -> scores[u]));
+    }
+
+    // Served from the follower-count buckets kept up to date by every follow and unfollow; only users with followers
+    public List<RankedUser> topFollowed(int k) {
+        int[] ids = new int[k];
+        int[] counts = new int[k];
+        int found = followerRanking.top(k, ids, counts);
+        List<RankedUser> ranking = new ArrayList<>(found);
+        for (int rank = 0; rank < found; rank++) {
+            ranking.add(new RankedUser(ids[rank], registry.get(ids[rank]).name, counts[rank]));
+        }
+        return ranking;
+    }
+
+    private List<RankedUser> toRanking(TopKHeap heap) {
+        List<RankedUser> ranking = new ArrayList<>(heap.size);
+        for (int rank = 0; rank < heap.size; rank++) {
+            ranking.add(new RankedUser(heap.ids[rank], registry.get(heap.ids[rank]).name, heap.scores[rank]));
+        }
+        return ranking;
+    }
+
+    // Warm-started from the previous result; only re-iterates when the graph changed since the last call
+    public Map<String, Double> calculateEigenvectorCentrality() {
+        double[] scores = centrality.eigenvector(flatSnapshot());
+        Map<String, Double> eigenvectorCentrality = new HashMap<>();
+        for (int u = 0; u < scores.length; u++) {
+            eigenvectorCentrality.put(registry.get(u).name, scores[u]);
+        }
+        return eigenvectorCentrality;
+    }
+
+    public Map<String, Double> calculateEigenvectorCentrality(int maxIterations, double tolerance, int threads) {
+        long start = Metrics.start();
+        EigenvectorCentrality engine = new EigenvectorCentrality(maxIterations, tolerance, threads);
+        double[] scores = engine.compute(flatSnapshot());
+        if (start != 0) {
+            Metrics.EIGENVECTOR.recordSince(start);
+            Metrics.EIGENVECTOR_ITERATIONS.record(engine.iterations);
+        }
+        Map<String, Double> eigenvectorCentrality = new HashMap<>();
+        for (int u = 0; u < scores.length; u++) {
+            eigenvectorCentrality.put(registry.get(u).name, scores[u]);
+        }
+        return eigenvectorCentrality;
+    }
+
+    public Map<String, Double> calculatePageRank() {
+        long start = Metrics.start();
+        PageRank engine = new PageRank(PAGE_RANK_DAMPING, 100, 1e-9, Runtime.getRuntime().availableProcessors());
+        double[] ranks = engine.compute(flatFollowGraph());
+        if (start != 0) {
+            Metrics.PAGE_RANK.recordSince(start);
+            Metrics.PAGE_RANK_ITERATIONS.record(engine.iterations);
+        }
+        return toNameMap(ranks);
+    }
+
+    // "Who to follow": personalised PageRank from name by forward push, skipping accounts already followed
+    public List<Recommendation> suggestFollows(String name, int k) throws UserNotFoundException {
+        User user = getUserByName(name);
+        if (user == null) {
+            throw new UserNotFoundException("User not found.");
+        }
+        long start = Metrics.start();
+        FollowGraph graph = followGraph();
+        PersonalizedPageRank engine = personalizedRanks.get();
+        if (engine == null) {
+            engine = new PersonalizedPageRank(graph);
+            personalizedRanks.set(engine);
+        }
+        engine.use(graph);
+        int found = engine.recommend(user.id, 1 - PAGE_RANK_DAMPING, PUSH_THRESHOLD, k);
+        if (start != 0) {
+            Metrics.SUGGEST_FOLLOWS.recordSince(start);
+            Metrics.PUSHES.record(engine.lastPushes);
+        }
+        List<Recommendation> suggestions = new ArrayList<>(found);
+        for (int rank = 0; rank < found; rank++) {
+            int id = engine.resultId(rank);
+            suggestions.add(new Recommendation(id, registry.get(id).name, engine.resultScore(rank), 0));
+        }
+        return suggestions;
+    }
+
+    // pivots >= the number of users (or <= 0) gives exact Brandes; fewer samples that many sources
+    public Map<String, Double> calculateBetweennessCentrality(int pivots) {
+        return toNameMap(shortestPathCentrality(pivots).betweenness);
+    }
+
+    public Map<String, Double> calculateClosenessCentrality(int pivots) {
+        return toNameMap(shortestPathCentrality(pivots).closeness);
+    }
+
+    // One Brandes pass yields both betweenness and closeness
+    public BetweennessCentrality shortestPathCentrality(int pivots) {
+        long start = Metrics.start();
+        CSRGraph graph = flatSnapshot();
+        BetweennessCentrality engine = new BetweennessCentrality(Runtime.getRuntime().availableProcessors());
+        if (pivots <= 0 || pivots >= graph.nodeCount()) {
+            engine.computeExact(graph);
+        } else {
+            engine.computeApproximate(graph, pivots, System.nanoTime());
+        }
+        Metrics.BETWEENNESS.recordSince(start);
+        return engine;
+    }
+
+    // Users with the same value are connected through some chain of friendships
+    public Map<String, Integer> calculateConnectedComponents() {
+        ConnectedComponents engine = new ConnectedComponents(Runtime.getRuntime().availableProcessors());
+        engine.compute(flatSnapshot());
+        return toNameMap(engine.component);
+    }
+
+    public Map<String, Double> calculateClusteringCoefficient() {
+        return toNameMap(countTriangles().clustering);
+    }
+
+    public TriangleCounter countTriangles() {
+        TriangleCounter engine = new TriangleCounter(Runtime.getRuntime().availableProcessors());
+        engine.compute(flatSnapshot());
+        return engine;
+    }
+
+    // Label propagation; community ids are dense, numbered from 0
+    public Map<String, Integer> detectCommunities(int maxIterations) {
+        LabelPropagation engine = new LabelPropagation(Runtime.getRuntime().availableProcessors(), maxIterations, System.nanoTime());
+        engine.compute(flatSnapshot());
+        return toNameMap(engine.community);
+    }
+
+    private Map<String, Integer> toNameMap(int[] values) {
+        Map<String, Integer> byName = new HashMap<>();
+        for (int u = 0; u < values.length; u++) {
+            byName.put(registry.get(u).name, values[u]);
+        }
+        return byName;
+    }
+
+    private Map<String, Double> toNameMap(double[] scores) {
+        Map<String, Double> byName = new HashMap<>();
+        for (int u = 0; u < scores.length; u++) {
+            byName.put(registry.get(u).name, scores[u]);
+        }
+        return byName;
+    }
+
+    private static void serve(SocialNetwork2 network, int port) {
+        try (QueryServer server = new QueryServer(network, new InetSocketAddress(port),
+                Runtime.getRuntime().availableProcessors())) {
+            server.start();
+            System.out.println("Serving queries on port " + server.port());
+            server.awaitTermination();
+        } catch (IOException e) {
+            System.out.println("Cannot start server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Usage: java SocialNetwork2 [--data-dir DIR] [serve [port] | load <edges> [names]]
+    public static void main(String[] args) {
+        Scanner scanner = new Scanner(System.in);
+        int arg = 0;
+        Path dataDir = null;
+        if (args.length > 1 && args[0].equals("--data-dir")) {
+            dataDir = Paths.get(args[1]);
+            arg = 2;
+        }
+        // The MBean is always there, so recording can be switched on over JMX in a running process.
+        // Run with -Dsocialnetwork.metrics=true to record from the start and get a periodic dump as well
+        try {
+            Metrics.registerMBean();
+        } catch (JMException e) {
+            System.out.println("Metrics not available over JMX: " + e.getMessage());
+        }
+        if (Metrics.enabled) {
+            Metrics.startReporter(System.err, Long.getLong("socialnetwork.metrics.period", 60), TimeUnit.SECONDS);
+        }
+        // "load <edges> [names]" bulk-loads an edge list. With a data directory the result replaces what the
+        // directory held and the process exits; without one it is served on the default port
+        if (args.length > arg + 1 && args[arg].equals("load")) {
+            Path edgeFile = Paths.get(args[arg + 1]);
+            Path namesFile = args.length > arg + 2 ? Paths.get(args[arg + 2]) : null;
+            SocialNetwork2 loaded;
+            try {
+                loaded = bulkLoad(edgeFile, namesFile, Runtime.getRuntime().availableProcessors());
+            } catch (IOException e) {
+                System.out.println("Cannot load " + edgeFile + ": " + e.getMessage());
+                return;
+            }
+            System.out.println("Loaded " + loaded.registry.size() + " users from " + edgeFile);
+            if (dataDir == null) {
+                serve(loaded, SERVER_PORT);
+                return;
+            }
+            try {
+                // The old log belongs to the old snapshot, so it goes first: a crash in between must not
+                // replay it over the loaded network
+                Files.createDirectories(dataDir);
+                Files.deleteIfExists(dataDir.resolve(LOG_FILE));
+                loaded.saveSnapshot(dataDir.resolve(SNAPSHOT_FILE));
+                System.out.println("Checkpointed to " + dataDir);
+            } catch (IOException e) {
+                System.out.println("Cannot write data directory " + dataDir + ": " + e.getMessage());
+            }
+            return;
+        }
+        // With a data directory the network is recovered from it, and every write is logged there
+        SocialNetwork2 socialNetwork;
+        if (dataDir != null) {
+            try {
+                socialNetwork = openDataDir(dataDir);
+            } catch (IOException e) {
+                System.out.println("Cannot open data directory " + dataDir + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            socialNetwork = new SocialNetwork2();
+        }
+        // "serve [port]" answers the binary query protocol over TCP instead of running the menu
+        if (args.length > arg && args[arg].equals("serve")) {
+            serve(socialNetwork, args.length > arg + 1 ? Integer.parseInt(args[arg + 1]) : SERVER_PORT);
+            return;
+        }
+        int choice;
+        int choice1;
+        String name1, name2, postContent;
+        while (true) {
+            System.out.println("=============================================");
+            System.out.println("1. Add user");
+            System.out.println("2. Add friend");
             System.out.println("3. Show posts");
             System.out.println("4. Show friends");
             System.out.println("5. Functionality for user");
             System.out.println("6. Show user details");
             System.out.println("7. Degree centrality users");                   
             System.out.println("8. Eigenvector centrality users");                    
-            System.out.println("9. Exit");
+            System.out.println("9. Most followed users");
+            System.out.println("10. Exit");
             System.out.println("=============================================");
             System.out.print("Enter your choice: ");
             System.out.println();
             choice = scanner.nextInt();
             switch (choice) {
                 case 1:
-                    System.out.print("Enter the name of the user: ");
-                    name1 = scanner.next();
-                    socialNetwork.addUser(name1);
+                    try {
+                        System.out.print("Enter the name of the user: ");
+                        name1 = scanner.next();
+                        socialNetwork.addUser(name1);
+                    } catch (InvalidInputException e) {
+                        System.out.println(e.getMessage());
+                    }
+                    break;
+                case 2:
+                    try {
+                        System.out.print("Enter the names of the users (separated by space): ");
+                        name1 = scanner.next();
+                        name2 = scanner.next();
+                        socialNetwork.addFriend(name1, name2);
+                    } catch (UserNotFoundException e) {
+                        System.out.println(e.getMessage());
+                    }
+                    break;
+                case 3:
+                    try {
+                        System.out.print("Enter the name of the user: ");
+                        name1 = scanner.next();
+                        socialNetwork.showPosts(name1);
+                    } catch (UserNotFoundException e) {
+                        System.out.println(e.getMessage());
+                    }
+                    break;
+                case 4:
+                    try {
+                        System.out.print("Enter the name of the user: ");
+                        name1 = scanner.next();
+                        socialNetwork.showFriends(name1);
+                    } catch (UserNotFoundException e) {
+                        System.out.println(e.getMessage());
+                    }
+                    break;
+                case 5:
+                    boolean flag11 = true;
+                    System.out.print("Enter the names of the users : ");
+                    name1 = scanner.next();
+                    while(flag11){
+                        System.out.println("------------------------------------------------");
+                        System.out.println("1. Add friend");
+                        System.out.println("2. Add post");
+                        System.out.println("3. Show posts");
+                        System.out.println("4. Show friends");
+                        System.out.println("5. Show mutual");
+                        System.out.println("6. Remove friend");
+                        System.out.println("7. Suggest friends (Common Neighbor Algorithm)");
+                        System.out.println("8. Like post");
+                        System.out.println("9. Follow user");
+                        System.out.println("10. Unfollow user");           
+                        System.out.println("11. Show home feed");
+                        System.out.println("12. Exit");
+                        System.out.println("------------------------------------------------");
+
+                        System.out.print("Enter your choice: ");
+                        System.out.println();
+                        choice = scanner.nextInt();
+                        switch (choice) {
+                            case 1:
+                                try {
+                                    System.out.print("Enter the names of the users to be friends with: ");
+                                    name2 = scanner.next();
+                                    socialNetwork.addFriend(name1, name2);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 2:
+                                try {
+                                    System.out.print("Enter the post content: ");
+                                    scanner.nextLine(); // Consume newline
+                                    postContent = scanner.nextLine();
+                                    socialNetwork.addPost(name1, postContent);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break; 
+                            case 3:
+                                try {
+                                    socialNetwork.showPosts(name1);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 4:
+                                try {
+                                    socialNetwork.showFriends(name1);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 5:
+                                try {
+                                    System.out.print("Enter the names of the user to show mutuals: ");
+                                    name2 = scanner.next();
+                                    socialNetwork.showMutuals(name1, name2);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 6:
+                                try {
+                                    System.out.print("Enter the names of the user to remove friends: ");
+                                    name2 = scanner.next();
+                                    socialNetwork.removeFriend(name1, name2);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break; 
+                            case 7:
+                                try {
+                                    socialNetwork.suggestFriendsCommonNeighbor(name1);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;    
+                            case 8:
+                                try {
+                                    System.out.print("Enter the name of the post owner: ");
+                                    name2 = scanner.next();
+                                    socialNetwork.likePost(name1, name2);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 9:
+                                try {
+                                    System.out.print("Enter the name of the followed: ");
+                                    name2 = scanner.next();
+                                    socialNetwork.followUser(name1, name2);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 10:
+                                try {
+                                    System.out.print("Enter the name of the followed: ");
+                                    name2 = scanner.next();
+                                    socialNetwork.unfollowUser(name1, name2);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;              
+                            case 11:
+                                try {
+                                    socialNetwork.showHomeFeed(name1);
+                                } catch (UserNotFoundException e) {
+                                    System.out.println(e.getMessage());
+                                }
+                                break;
+                            case 12:
+                                flag11 = false;
+                                break;
+                        }
+                    }
+                    break;
+                case 6:
+                    try {
+                        System.out.print("Enter the name of the user: ");
+                        name1 = scanner.next();
+                        socialNetwork.showUserDetails(name1);
+                    } catch (UserNotFoundException e) {
+                        System.out.println(e.getMessage());
+                    }
+                    break;
+                case 7:
+                    System.out.println("Degree Centrality:");
+                    for (RankedUser entry : socialNetwork.topDegreeCentrality(TOP_USERS)) {
+                        System.out.println(entry.name + ": " + entry.score);
+                    }    
+                    break;
+                case 8:
+                    System.out.println("eigenvector Centrality:");
+                    for (RankedUser entry : socialNetwork.topEigenvectorCentrality(TOP_USERS)) {
+                        System.out.println(entry.name + ": " + entry.score);
+                    }    
+                    break;
+                case 9:
+                    System.out.println("Followers:");
+                    for (RankedUser entry : socialNetwork.topFollowed(TOP_USERS)) {
+                        System.out.println(entry.name + ": " + (int) entry.score);
+                    }
+                    break;
+                case 10:
+                    System.exit(0);
+            }
+        }
+    }
+}
+
+// Runs writer and reader threads against one network at once, then checks the invariants the concurrent structures
+// must keep: friendships are symmetric, like counters match the liker sets, and the registry, counters, rankings
+// and graph snapshots all agree. Readers favour the newest users, whom lookups can find before the graphs cover them
+class ConcurrencyStress {
+    int users = 2_000;
+    int writers = 4;
+    int readers = 4;
+    int seconds = 5;
+    long seed = 7;
+    // Violations past this many are counted but not listed
+    static final int MAX_REPORTED = 20;
+    // A thread still running this long after the deadline is taken to be deadlocked or livelocked
+    static final int STUCK_SECONDS = 30;
+
+    final SocialNetwork2 network = new SocialNetwork2();
+    final LongAdder writes = new LongAdder();
+    final LongAdder reads = new LongAdder();
+    final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+    // Edges of the users the writers add themselves; nothing removes those, so every one must survive
+    final List<User[]> expectedFriends = Collections.synchronizedList(new ArrayList<>());
+    final List<User[]> expectedFollows = Collections.synchronizedList(new ArrayList<>());
+    Path logFile;
+
+    public boolean run() throws Exception {
+        // Several operations print to the console
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        // Every write is logged, so the log can be replayed afterwards and compared with the live network
+        logFile = Files.createTempFile("stress", ".log");
+        network.wal = new WriteAheadLog(logFile, 0, false);
+        try {
+            checkBulkLoad();
+            for (int u = 0; u < users; u++) {
+                network.addUser("user" + u);
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+            List<Future<?>> tasks = new ArrayList<>();
+            boolean stuck = false;
+            try {
+                for (int t = 0; t < writers + readers; t++) {
+                    int thread = t;
+                    SplittableRandom random = new SplittableRandom(seed * 31 + t);
+                    tasks.add(executor.submit(() -> {
+                        if (thread < writers) {
+                            write(thread, random, deadline);
+                        } else {
+                            read(random, deadline);
+                        }
+                        return null;
+                    }));
+                }
+                long giveUp = deadline + TimeUnit.SECONDS.toNanos(STUCK_SECONDS);
+                for (Future<?> task : tasks) {
+                    try {
+                        task.get(Math.max(0, giveUp - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    } catch (ExecutionException e) {
+                        violations.add("Thread failed: " + e.getCause());
+                    } catch (TimeoutException e) {
+                        violations.add("Thread still running " + STUCK_SECONDS + " s after the deadline: deadlock or livelock");
+                        stuck = true;
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            // The invariants only hold once every thread has stopped
+            if (!stuck) {
+                check();
+                checkReplay();
+            }
+        } finally {
+            System.setOut(console);
+            Files.deleteIfExists(logFile);
+        }
+        System.out.printf("%d writers, %d readers, %d s: %d writes, %d reads, %d users, %d violations%n", writers, readers,
+                seconds, writes.sum(), reads.sum(), network.registry.size(), violations.size());
+        for (String violation : violations.subList(0, Math.min(MAX_REPORTED, violations.size()))) {
+            System.out.println("  " + violation);
+        }
+        return violations.isEmpty();
+    }
+
+    // Removals only touch the users created up front, so the edges of the writers' own users are never undone
+    private void write(int writer, SplittableRandom random, long deadline) throws Exception {
+        int added = 0;
+        User mine = null;
+        List<User[]> friends = new ArrayList<>();
+        List<User[]> follows = new ArrayList<>();
+        while (System.nanoTime() < deadline) {
+            User user1 = randomUser(random);
+            User user2 = randomUser(random);
+            int pick = random.nextInt(100);
+            if (pick < 2) {
+                String name = "writer" + writer + "-" + added++;
+                network.addUser(name);
+                mine = network.getUserByName(name);
+            } else if (user1 == user2) {
+                continue;
+            } else if (pick < 40) {
+                if (mine != null && mine != user2 && random.nextInt(4) == 0) {
+                    network.applyAddFriend(mine, user2);
+                    friends.add(new User[]{mine, user2});
+                } else {
+                    network.applyAddFriend(user1, user2);
+                }
+            } else if (pick < 55) {
+                if (user1.id < users && user2.id < users) {
+                    network.applyRemoveFriend(user1, user2);
+                }
+            } else if (pick < 70) {
+                if (mine != null && mine != user2 && random.nextInt(4) == 0) {
+                    network.applyFollow(mine, user2);
+                    follows.add(new User[]{mine, user2});
+                } else {
+                    network.applyFollow(user1, user2);
+                }
+            } else if (pick < 78) {
+                if (user1.id < users && user2.id < users) {
+                    network.applyUnfollow(user1, user2);
+                }
+            } else if (pick < 85) {
+                network.applyAddPost(user1, -1, System.currentTimeMillis(), "stress post");
+            } else {
+                // The newest post half the time, to race likes against the post's own publication
+                long posts = network.nextPostId.get();
+                Post post = posts == 0 ? null
+                        : network.postsById.get(random.nextBoolean() ? posts - 1 : random.nextLong(posts));
+                if (post != null) {
+                    network.applyLike(user1, post, random.nextBoolean());
+                }
+            }
+            writes.increment();
+        }
+        expectedFriends.addAll(friends);
+        expectedFollows.addAll(follows);
+    }
+
+    private void read(SplittableRandom random, long deadline) throws Exception {
+        while (System.nanoTime() < deadline) {
+            User user1 = random.nextBoolean() ? network.registry.get(network.registry.size() - 1) : randomUser(random);
+            User user2 = randomUser(random);
+            switch (random.nextInt(7)) {
+                case 0:
+                    network.shortestPath(user1.name, user2.name, 6);
+                    break;
+                case 1:
+                    network.suggestFriends(user1.name, LinkScorer.ADAMIC_ADAR, SocialNetwork2.SUGGESTION_LIMIT);
+                    break;
+                case 2:
+                    network.mutualFriends(user1.name, user2.name);
+                    break;
+                case 3:
+                    network.suggestFollows(user1.name, SocialNetwork2.SUGGESTION_LIMIT);
+                    break;
+                case 4:
+                    network.homeFeed(user1.name, SocialNetwork2.FEED_PAGE_SIZE);
+                    break;
+                case 5:
+                    network.topFollowed(SocialNetwork2.TOP_USERS);
+                    break;
+                default:
+                    // Rows are re-read one at a time while writers run, so only their bounds can be checked here
+                    CSRGraph graph = network.snapshot();
+                    int u = random.nextInt(graph.nodeCount());
+                    int[] row = graph.row(u);
+                    for (int i = graph.start(u); i < graph.end(u); i++) {
+                        if (row[i] >= graph.nodeCount()) {
+                            violations.add("Snapshot row " + u + " names user " + row[i] + " past its " + graph.nodeCount());
+                        }
+                    }
+            }
+            reads.increment();
+        }
+    }
+
+    private User randomUser(SplittableRandom random) {
+        return network.registry.get(random.nextInt(network.registry.size()));
+    }
+
+    // Runs after every thread has stopped, so the live structures are quiescent
+    private void check() {
+        for (User[] edge : expectedFriends) {
+            if (!network.adjacencyList.getOrDefault(edge[0], Collections.emptySet()).contains(edge[1])
+                    || !network.adjacencyList.getOrDefault(edge[1], Collections.emptySet()).contains(edge[0])) {
+                violations.add("Friendship " + edge[0].name + " - " + edge[1].name + " was added and never removed, but is gone");
+            }
+        }
+        for (User[] edge : expectedFollows) {
+            if (!edge[0].follows.contains(edge[1]) || !edge[1].followers.contains(edge[0])) {
+                violations.add(edge[0].name + " followed " + edge[1].name + " and never unfollowed, but the follow is gone");
+            }
+        }
+        UserRegistry registry = network.registry;
+        int count = registry.size();
+        CSRGraph graph = network.snapshot();
+        FollowGraph follows = network.followGraph();
+        if (graph.nodeCount() != count || follows.nodeCount() != count) {
+            violations.add("Registry holds " + count + " users, friendship graph " + graph.nodeCount()
+                    + ", follow graph " + follows.nodeCount());
+            return;
+        }
+        for (int u = 0; u < count; u++) {
+            User user = registry.get(u);
+            Set<User> friends = network.adjacencyList.getOrDefault(user, Collections.emptySet());
+            for (User friend : friends) {
+                if (!network.adjacencyList.getOrDefault(friend, Collections.emptySet()).contains(user)) {
+                    violations.add("Friendship " + user.name + " -> " + friend.name + " has no reverse");
+                }
+            }
+            if (!Arrays.equals(sortedIds(friends), row(graph, u))) {
+                violations.add("Snapshot row of " + user.name + " differs from the live friend set");
+            }
+            if (network.centrality.degree(u) != friends.size()) {
+                violations.add("Degree counter of " + user.name + " is " + network.centrality.degree(u)
+                        + ", friend set holds " + friends.size());
+            }
+            for (User followed : user.follows) {
+                if (!followed.followers.contains(user)) {
+                    violations.add(user.name + " follows " + followed.name + " but is not among the followers");
+                }
+            }
+            if (!Arrays.equals(sortedIds(user.follows), row(follows.out, u))
+                    || !Arrays.equals(sortedIds(user.followers), row(follows.in, u))) {
+                violations.add("Follow graph rows of " + user.name + " differ from the live follow sets");
+            }
+            if (network.followerRanking.followers(u) != user.followers.size()) {
+                violations.add("Follower ranking has " + network.followerRanking.followers(u) + " followers for "
+                        + user.name + ", follower set holds " + user.followers.size());
+            }
+            long likes = 0;
+            for (int i = 0; i < user.posts.size(); i++) {
+                Post post = user.posts.get(i);
+                Set<User> likers = post.likedBy;
+                if (post.likeCount() != (likers == null ? 0 : likers.size())) {
+                    violations.add("Post " + post.id + " counts " + post.likeCount() + " likes, liker set holds "
+                            + (likers == null ? 0 : likers.size()));
+                }
+                likes += post.likeCount();
+            }
+            if (user.getLikes() != likes) {
+                violations.add(user.name + " counts " + user.getLikes() + " likes received, posts hold " + likes);
+            }
+        }
+    }
+
+    // A bulk-loaded network must serve every user from both graphs straight away, e.g. rank all of them
+    private void checkBulkLoad() throws IOException {
+        Path edgeFile = Files.createTempFile("stress", ".edges");
+        try {
+            Files.write(edgeFile, Arrays.asList("# a path and a triangle", "1 2", "2 3", "4 5", "5 6", "6 4"));
+            SocialNetwork2 loaded = SocialNetwork2.bulkLoad(edgeFile, null, 2);
+            int count = loaded.registry.size();
+            Map<String, Double> ranks = loaded.calculatePageRank();
+            double total = ranks.values().stream().mapToDouble(Double::doubleValue).sum();
+            if (loaded.snapshot().nodeCount() != count || loaded.followGraph().nodeCount() != count
+                    || ranks.size() != count || Math.abs(total - 1) > 1e-6) {
+                violations.add("Bulk load of " + count + " users gives a friendship graph of " + loaded.snapshot().nodeCount()
+                        + ", a follow graph of " + loaded.followGraph().nodeCount() + " and " + ranks.size()
+                        + " ranks summing to " + total);
+            }
+        } finally {
+            Files.deleteIfExists(edgeFile);
+        }
+    }
+
+    // Records for one user or post come from different threads (a like of a new post, a friendship with a new
+    // user), so the log must still rebuild every acknowledged write when replayed in its own order
+    private void checkReplay() throws IOException {
+        network.wal.close();
+        SocialNetwork2 replayed = new SocialNetwork2();
+        WriteAheadLog.replay(logFile, replayed);
+        if (replayed.registry.size() != network.registry.size()) {
+            violations.add("Replaying the log gives " + replayed.registry.size() + " users, the network holds "
+                    + network.registry.size());
+        }
+        for (User user : network.registry.users()) {
+            User copy = replayed.registry.get(user.name);
+            if (copy == null) {
+                violations.add("Replaying the log loses user " + user.name);
+                continue;
+            }
+            if (!names(network.adjacencyList.get(user)).equals(names(replayed.adjacencyList.get(copy)))
+                    || !names(user.follows).equals(names(copy.follows))) {
+                violations.add("Replaying the log changes the friends or follows of " + user.name);
+            }
+            if (user.posts.size() != copy.posts.size()) {
+                violations.add("Replaying the log gives " + user.name + " " + copy.posts.size() + " posts, not "
+                        + user.posts.size());
+                continue;
+            }
+            for (int i = 0; i < user.posts.size(); i++) {
+                Post post = user.posts.get(i);
+                Post replayedPost = copy.posts.get(i);
+                if (post.id != replayedPost.id || !names(post.likedBy).equals(names(replayedPost.likedBy))) {
+                    violations.add("Replaying the log changes post " + post.id + " or its likes");
+                }
+            }
+        }
+    }
+
+    private static Set<String> names(Collection<User> users) {
+        Set<String> names = new HashSet<>();
+        if (users != null) {
+            for (User user : users) {
+                names.add(user.name);
+            }
+        }
+        return names;
+    }
+
+    private static int[] sortedIds(Collection<User> users) {
+        return users.stream().mapToInt(user -> user.id).sorted().toArray();
+    }
+
+    private static int[] row(CSRGraph graph, int u) {
+        return Arrays.copyOfRange(graph.row(u), graph.start(u), graph.end(u));
+    }
+
+    // Build: javac -d out SocialNetworkDAA.java
+    // Usage: java -cp out ConcurrencyStress [--users N] [--writers W] [--readers R] [--seconds S] [--seed X]
+    // Exits with status 1 when any invariant is violated
+    public static void main(String[] args) throws Exception {
+        ConcurrencyStress stress = new ConcurrencyStress();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--users":
+                    stress.users = Integer.parseInt(args[++i]);
+                    break;
+                case "--writers":
+                    stress.writers = Integer.parseInt(args[++i]);
+                    break;
+                case "--readers":
+                    stress.readers = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    stress.seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    stress.seed = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (!stress.run()) {
+            System.exit(1);
+        }
+    }
+}
+
+class LoadGenerator {
+    // How long the connections wait for each other to open before the run gives up
+    static final int CONNECT_TIMEOUT_SECONDS = 30;
+
+    String host = "localhost";
+    int port = SocialNetwork2.SERVER_PORT;
+    int connections = 64;
+    int pipeline = 16;
+    int seconds = 10;
+    int users = 10_000;
+    int edgesPerUser = 5;
+    int writePercent = 1;
+    boolean populate;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    // Creates the users and a preferential-attachment friend and follow graph through the server itself
+    public void populate() throws IOException {
+        long start = System.nanoTime();
+        try (QueryClient client = new QueryClient(host, port)) {
+            Window window = new Window(client, 1024);
+            for (int u = 0; u < users; u++) {
+                client.addUser(nameOf(u));
+                window.sent();
+            }
+            SplittableRandom random = new SplittableRandom(1);
+            int[] endpoints = new int[2 * edgesPerUser * users + 2];
+            int size = 0;
+            endpoints[size++] = 0;
+            for (int u = 1; u < users; u++) {
+                for (int i = 0; i < edgesPerUser; i++) {
+                    int target = endpoints[random.nextInt(size)];
+                    client.addFriend(nameOf(u), nameOf(target));
+                    window.sent();
+                    client.follow(nameOf(u), nameOf(target));
+                    window.sent();
+                    endpoints[size++] = target;
+                }
+                endpoints[size++] = u;
+            }
+            window.drain();
+        }
+        System.out.printf("Populated %d users in %.1f s%n", users, (System.nanoTime() - start) / 1e9);
+    }
+
+    // Every connection keeps `pipeline` requests in flight: write a window, flush, read the window back.
+    // The clock starts once all connections are open
+    public void run() throws Exception {
+        long[] clock = new long[2];
+        CyclicBarrier connected = new CyclicBarrier(connections, () -> {
+            clock[0] = System.nanoTime();
+            clock[1] = clock[0] + TimeUnit.SECONDS.toNanos(seconds);
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            long seed = c;
+            results.add(executor.submit(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                long[] roundTrips = new long[1 << 16];
+                int count = 0;
+                QueryClient opened;
+                try {
+                    opened = new QueryClient(host, port);
+                } catch (IOException e) {
+                    // Release the connections already waiting; any still to arrive give up at the timeout
+                    connected.reset();
+                    throw e;
+                }
+                try (QueryClient client = opened) {
+                    connected.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    long deadline = clock[1];
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        int first = client.nextRequestId;
+                        for (int i = 0; i < pipeline; i++) {
+                            sendRandom(client, random);
+                        }
+                        client.flush();
+                        for (int i = 0; i < pipeline; i++) {
+                            if (client.read() != QueryProtocol.OK) {
+                                errors.increment();
+                            }
+                            if (client.lastRequestId != first + i) {
+                                throw new IOException("Response " + client.lastRequestId + " out of order, expected " + (first + i));
+                            }
+                        }
+                        requests.add(pipeline);
+                        if (count == roundTrips.length) {
+                            roundTrips = Arrays.copyOf(roundTrips, count * 2);
+                        }
+                        roundTrips[count++] = System.nanoTime() - start;
+                    }
+                }
+                return Arrays.copyOf(roundTrips, count);
+            }));
+        }
+        List<long[]> all = new ArrayList<>();
+        try {
+            for (Future<long[]> result : results) {
+                all.add(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - clock[0];
+
+        long[] roundTrips = all.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d connections, pipeline %d: %d requests in %.1f s = %.0f requests/s, %d errors%n",
+                connections, pipeline, requests.sum(), elapsed / 1e9, requests.sum() * 1e9 / elapsed, errors.sum());
+        if (roundTrips.length > 0) {
+            System.out.printf("Window round trip: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    percentile(roundTrips, 50) / 1e6, percentile(roundTrips, 99) / 1e6, roundTrips[roundTrips.length - 1] / 1e6);
+        }
+    }
+
+    // writePercent of the requests are friend, follow and post writes in equal parts; the rest are lookups,
+    // feeds, suggestions, mutuals and top-K reads. Writes only ever add, so the default keeps them rare enough
+    // that repeated runs against one server measure the same graph rather than an ever denser one
+    private void sendRandom(QueryClient client, SplittableRandom random) throws IOException {
+        String name = nameOf(random.nextInt(users));
+        if (random.nextInt(100) < writePercent) {
+            int pick = random.nextInt(3);
+            if (pick == 0) {
+                client.addFriend(name, nameOf(random.nextInt(users)));
+            } else if (pick == 1) {
+                client.follow(name, nameOf(random.nextInt(users)));
+            } else {
+                client.addPost(name, "load test post");
+            }
+            return;
+        }
+        int pick = random.nextInt(100);
+        if (pick < 45) {
+            client.lookup(name);
+        } else if (pick < 62) {
+            client.homeFeed(name, SocialNetwork2.FEED_PAGE_SIZE);
+        } else if (pick < 79) {
+            client.suggestFriends(name, LinkScorer.COMMON_NEIGHBORS, SocialNetwork2.SUGGESTION_LIMIT);
+        } else if (pick < 90) {
+            client.mutuals(name, nameOf(random.nextInt(users)));
+        } else {
+            client.topFollowed(SocialNetwork2.TOP_USERS);
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    static String nameOf(int user) {
+        return "user" + user;
+    }
+
+    // Blocking client for the query protocol. Requests are buffered until flush(), so a caller can pipeline
+    // any number of them and then read the responses back in the same order
+    static class QueryClient implements Closeable {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(frame);
+        int nextRequestId;
+        int lastRequestId;
+        byte lastStatus;
+        byte[] lastPayload;
+
+        public QueryClient(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        }
+
+        public int lookup(String name) throws IOException {
+            return begin(QueryProtocol.LOOKUP).string(name).send();
+        }
+
+        public int addUser(String name) throws IOException {
+            return begin(QueryProtocol.ADD_USER).string(name).send();
+        }
+
+        public int addFriend(String name1, String name2) throws IOException {
+            return begin(QueryProtocol.ADD_FRIEND).string(name1).string(name2).send();
+        }
+
+        public int follow(String follower, String followed) throws IOException {
+            return begin(QueryProtocol.FOLLOW).string(follower).string(followed).send();
+        }
+
+        public int addPost(String name, String content) throws IOException {
+            return begin(QueryProtocol.ADD_POST).string(name).string(content).send();
+        }
+
+        public int mutuals(String name1, String name2) throws IOException {
+            return begin(QueryProtocol.MUTUALS).string(name1).string(name2).send();
+        }
+
+        public int homeFeed(String name, int limit) throws IOException {
+            return begin(QueryProtocol.HOME_FEED).string(name).integer(limit).send();
+        }
+
+        public int suggestFriends(String name, LinkScorer scorer, int k) throws IOException {
+            return begin(QueryProtocol.SUGGEST_FRIENDS).string(name).small(scorer.ordinal()).integer(k).send();
+        }
+
+        public int topFollowed(int k) throws IOException {
+            return begin(QueryProtocol.TOP_FOLLOWED).integer(k).send();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // Reads the next response; its id, status and raw result are left in the last* fields
+        public byte read() throws IOException {
+            int length = in.readInt();
+            lastRequestId = in.readInt();
+            lastStatus = in.readByte();
+            lastPayload = new byte[length - Integer.BYTES - 1];
+            in.readFully(lastPayload);
+            return lastStatus;
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private QueryClient begin(byte opcode) throws IOException {
+            frame.reset();
+            body.writeInt(nextRequestId);
+            body.writeByte(opcode);
+            return this;
+        }
+
+        private QueryClient string(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            body.writeInt(bytes.length);
+            body.write(bytes);
+            return this;
+        }
+
+        private QueryClient integer(int value) throws IOException {
+            body.writeInt(value);
+            return this;
+        }
+
+        private QueryClient small(int value) throws IOException {
+            body.writeByte(value);
+            return this;
+        }
+
+        private int send() throws IOException {
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+            return nextRequestId++;
+        }
+    }
+
+    // Keeps at most `size` populate requests unanswered so neither side's socket buffers fill up
+    static class Window {
+        final QueryClient client;
+        final int size;
+        int outstanding;
+
+        Window(QueryClient client, int size) {
+            this.client = client;
+            this.size = size;
+        }
+
+        void sent() throws IOException {
+            if (++outstanding == size) {
+                drain();
+            }
+        }
+
+        void drain() throws IOException {
+            client.flush();
+            for (; outstanding > 0; outstanding--) {
+                byte status = client.read();
+                if (status != QueryProtocol.OK && status != QueryProtocol.INVALID) {
+                    throw new IOException("Populate request " + client.lastRequestId + " failed with status " + status);
+                }
+            }
+        }
+    }
+
+    // Build: javac -d out SocialNetworkDAA.java
+    // Server: java -cp out SocialNetwork2 serve [port]
+    // Usage:  java -cp out LoadGenerator [--host H] [--port P] [--connections C] [--pipeline D]
+    //         [--seconds S] [--writes PERCENT] [--populate] [--users N] [--edges M]
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":
+                    generator.host = args[++i];
                     break;
-                case 2:
-                    try {
-                        System.out.print("Enter the names of the users (separated by space): ");
-                        name1 = scanner.next();
-                        name2 = scanner.next();
-                        socialNetwork.addFriend(name1, name2);
-                    } catch (UserNotFoundException e) {
-                        System.out.println(e.getMessage());
-                    }
+                case "--port":
+                    generator.port = Integer.parseInt(args[++i]);
                     break;
-                case 3:
-                    try {
-                        System.out.print("Enter the name of the user: ");
-                        name1 = scanner.next();
-                        socialNetwork.showPosts(name1);
-                    } catch (UserNotFoundException e) {
-                        System.out.println(e.getMessage());
-                    }
+                case "--connections":
+                    generator.connections = Integer.parseInt(args[++i]);
                     break;
-                case 4:
-                    try {
-                        System.out.print("Enter the name of the user: ");
-                        name1 = scanner.next();
-                        socialNetwork.showFriends(name1);
-                    } catch (UserNotFoundException e) {
-                        System.out.println(e.getMessage());
-                    }
+                case "--pipeline":
+                    generator.pipeline = Integer.parseInt(args[++i]);
                     break;
-                case 5:
-                    boolean flag11 = true;
-                    System.out.print("Enter the names of the users : ");
-                    name1 = scanner.next();
-                    while(flag11){
-                        System.out.println("------------------------------------------------");
-                        System.out.println("1. Add friend");
-                        System.out.println("2. Add post");
-                        System.out.println("3. Show posts");
-                        System.out.println("4. Show friends");
-                        System.out.println("5. Show mutual");
-                        System.out.println("6. Remove friend");
-                        System.out.println("7. Suggest friends (Common Neighbor Algorithm)");
-                        System.out.println("8. Like post");
-                        System.out.println("9. Follow user");
-                        System.out.println("10. Unfollow user");           
-                        System.out.println("11. Exit");
-                        System.out.println("------------------------------------------------");
-
-                        System.out.print("Enter your choice: ");
-                        System.out.println();
-                        choice = scanner.nextInt();
-                        switch (choice) {
-                            case 1:
-                                try {
-                                    System.out.print("Enter the names of the users to be friends with: ");
-                                    name2 = scanner.next();
-                                    socialNetwork.addFriend(name1, name2);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;
-                            case 2:
-                                try {
-                                    System.out.print("Enter the post content: ");
-                                    scanner.nextLine(); // Consume newline
-                                    postContent = scanner.nextLine();
-                                    socialNetwork.addPost(name1, postContent);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break; 
-                            case 3:
-                                try {
-                                    socialNetwork.showPosts(name1);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;
-                            case 4:
-                                try {
-                                    socialNetwork.showFriends(name1);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;
-                            case 5:
-                                try {
-                                    System.out.print("Enter the names of the user to show mutuals: ");
-                                    name2 = scanner.next();
-                                    socialNetwork.showMutuals(name1, name2);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;
-                            case 6:
-                                try {
-                                    System.out.print("Enter the names of the user to remove friends: ");
-                                    name2 = scanner.next();
-                                    socialNetwork.removeFriend(name1, name2);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break; 
-                            case 7:
-                                try {
-                                    socialNetwork.suggestFriendsCommonNeighbor(name1);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;    
-                            case 8:
-                                try {
-                                    System.out.print("Enter the name of the post owner: ");
-                                    name2 = scanner.next();
-                                    socialNetwork.likePost(name1, name2);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;
-                            case 9:
-                                try {
-                                    System.out.print("Enter the name of the followed: ");
-                                    name2 = scanner.next();
-                                    socialNetwork.followUser(name1, name2);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;
-                            case 10:
-                                try {
-                                    System.out.print("Enter the name of the followed: ");
-                                    name2 = scanner.next();
-                                    socialNetwork.unfollowUser(name1, name2);
-                                } catch (UserNotFoundException e) {
-                                    System.out.println(e.getMessage());
-                                }
-                                break;              
-                            case 11:
-                                flag11 = false;
-                                break;
-                        }
-                    }
+                case "--seconds":
+                    generator.seconds = Integer.parseInt(args[++i]);
                     break;
-                case 6:
-                    try {
-                        System.out.print("Enter the name of the user: ");
-                        name1 = scanner.next();
-                        socialNetwork.showUserDetails(name1);
-                    } catch (UserNotFoundException e) {
-                        System.out.println(e.getMessage());
-                    }
+                case "--populate":
+                    generator.populate = true;
                     break;
-                case 7:
-                    System.out.println("Degree Centrality:");
-                    Map<String, Double> degreeCentrality = socialNetwork.calculateDegreeCentrality();
-                    for (Map.Entry<String, Double> entry : degreeCentrality.entrySet()) {
-                        System.out.println(entry.getKey() + ": " + entry.getValue());
-                    }    
+                case "--users":
+                    generator.users = Integer.parseInt(args[++i]);
                     break;
-                case 8:
-                    System.out.println("eigenvector Centrality:");
-                    Map<String, Double> eigenVectorCentality = socialNetwork.calculateEigenvectorCentrality();
-                    for (Map.Entry<String, Double> entry : eigenVectorCentality.entrySet()) {
-                        System.out.println(entry.getKey() + ": " + entry.getValue());
-                    }    
+                case "--edges":
+                    generator.edgesPerUser = Integer.parseInt(args[++i]);
                     break;
-                case 9:
-                    System.exit(0);
+                case "--writes":
+                    generator.writePercent = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
             }
         }
+        if (generator.populate) {
+            generator.populate();
+        }
+        generator.run();
     }
 }
 
+class SocialNetworkBenchmark {
+    interface Operation {
+        Object run(BenchmarkState state) throws Exception;
+    }
+
+    // Synthetic power-law networks for benchmarking: Barabasi-Albert preferential attachment, where each new user
+    // befriends and follows m existing users picked with probability proportional to their degree
+    static class GraphGenerator {
+        public static SocialNetwork2 barabasiAlbert(int users, int m, int postsPerUser, long seed) throws InvalidInputException {
+            SocialNetwork2 network = new SocialNetwork2();
+            SplittableRandom random = new SplittableRandom(seed);
+            User[] created = new User[users];
+            for (int u = 0; u < users; u++) {
+                network.addUser(nameOf(u));
+                created[u] = network.getUserByName(nameOf(u));
+            }
+
+            // Every edge endpoint is appended once, so a uniform pick from it is a degree-proportional pick of a user
+            int[] endpoints = new int[2 * m * users + m * m];
+            int size = 0;
+            int core = Math.min(users, m + 1);
+            for (int u = 0; u < core; u++) {
+                for (int v = u + 1; v < core; v++) {
+                    network.applyAddFriend(created[u], created[v]);
+                    network.applyFollow(created[u], created[v]);
+                    endpoints[size++] = u;
+                    endpoints[size++] = v;
+                }
+            }
+            int[] targets = new int[m];
+            for (int u = core; u < users; u++) {
+                int picked = 0;
+                while (picked < m) {
+                    int target = endpoints[random.nextInt(size)];
+                    boolean duplicate = false;
+                    for (int i = 0; i < picked; i++) {
+                        duplicate |= targets[i] == target;
+                    }
+                    if (!duplicate) {
+                        targets[picked++] = target;
+                    }
+                }
+                for (int i = 0; i < m; i++) {
+                    network.applyAddFriend(created[u], created[targets[i]]);
+                    network.applyFollow(created[u], created[targets[i]]);
+                    endpoints[size++] = u;
+                    endpoints[size++] = targets[i];
+                }
+            }
+
+            for (int u = 0; u < users; u++) {
+                for (int i = 0; i < postsPerUser; i++) {
+                    network.applyAddPost(created[u], -1, System.currentTimeMillis(), "post " + i + " by " + nameOf(u));
+                }
+            }
+            return network;
+        }
+
+        public static String nameOf(int user) {
+            return "user" + user;
+        }
+    }
+
+    // Per-thread state handed to an operation: its own random stream and the network under test
+    static class BenchmarkState {
+        final SocialNetwork2 network;
+        final int users;
+        final SplittableRandom random;
+
+        public BenchmarkState(SocialNetwork2 network, int users, long seed) {
+            this.network = network;
+            this.users = users;
+            this.random = new SplittableRandom(seed);
+        }
+
+        public String randomName() {
+            return GraphGenerator.nameOf(random.nextInt(users));
+        }
+
+        // -1 when nothing has been posted yet (--posts 0), since nextLong(0) throws
+        public long randomPostId() {
+            long posts = network.nextPostId.get();
+            return posts == 0 ? -1 : random.nextLong(posts);
+        }
+    }
+
+    static class BenchmarkResult {
+        String name;
+        int threads;
+        long operations;
+        long elapsedNanos;
+        long[] latencies;
+        int samples;
+        long allocatedBytes;
+
+        public double opsPerSecond() {
+            return elapsedNanos == 0 ? 0 : operations * 1e9 / elapsedNanos;
+        }
+
+        // Latencies are sorted before the result is built
+        public double percentileMicros(double percentile) {
+            if (samples == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(samples - 1, Math.ceil(percentile / 100 * samples) - 1);
+            return latencies[Math.max(0, index)] / 1e3;
+        }
+
+        public double bytesPerOperation() {
+            return operations == 0 ? 0 : (double) allocatedBytes / operations;
+        }
+    }
+
+    // Latency samples kept per thread; once full, later calls still count toward throughput
+    static final int MAX_SAMPLES = 1 << 20;
+
+    // Results land here so the JIT can't drop the work that produced them
+    static volatile Object sink;
+
+    final Map<String, Operation> operations = new LinkedHashMap<>();
+    int users = 100_000;
+    int edgesPerUser = 5;
+    int postsPerUser = 2;
+    int threads = 1;
+    int warmupSeconds = 5;
+    int measureSeconds = 10;
+    long seed = 42;
+    Pattern filter = Pattern.compile(".*");
 
+    public SocialNetworkBenchmark() {
+        operations.put("getUserByName", state -> state.network.getUserByName(state.randomName()));
+        operations.put("addFriend", state -> {
+            state.network.addFriend(state.randomName(), state.randomName());
+            return null;
+        });
+        operations.put("removeFriend", state -> {
+            state.network.removeFriend(state.randomName(), state.randomName());
+            return null;
+        });
+        operations.put("addPost", state -> state.network.addPost(state.randomName(), "benchmark post"));
+        operations.put("likePost", state -> {
+            long postId = state.randomPostId();
+            return postId < 0 ? null : state.network.likePost(state.randomName(), postId);
+        });
+        operations.put("followUser", state -> {
+            state.network.followUser(state.randomName(), state.randomName());
+            return null;
+        });
+        operations.put("homeFeed", state -> state.network.homeFeed(state.randomName(), SocialNetwork2.FEED_PAGE_SIZE));
+        operations.put("bfs", state -> state.network.shortestPath(state.randomName(), state.randomName(), Integer.MAX_VALUE));
+        operations.put("mutualFriends", state -> state.network.mutualFriendCount(state.randomName(), state.randomName()));
+        operations.put("suggestFriendsCommonNeighbor",
+                state -> state.network.suggestFriends(state.randomName(), LinkScorer.COMMON_NEIGHBORS, SocialNetwork2.SUGGESTION_LIMIT));
+        operations.put("suggestFriendsAdamicAdar",
+                state -> state.network.suggestFriends(state.randomName(), LinkScorer.ADAMIC_ADAR, SocialNetwork2.SUGGESTION_LIMIT));
+        operations.put("suggestFollows", state -> state.network.suggestFollows(state.randomName(), SocialNetwork2.SUGGESTION_LIMIT));
+        operations.put("degreeCentrality", state -> state.network.calculateDegreeCentrality());
+        operations.put("topDegreeCentrality", state -> state.network.topDegreeCentrality(SocialNetwork2.TOP_USERS));
+        operations.put("eigenvectorCentrality", state -> state.network.calculateEigenvectorCentrality(100, 1e-6, threads));
+        operations.put("pageRank", state -> state.network.calculatePageRank());
+        operations.put("betweennessCentrality", state -> state.network.calculateBetweennessCentrality(64));
+        operations.put("topFollowed", state -> state.network.topFollowed(SocialNetwork2.TOP_USERS));
+    }
+
+    // Each operation gets a freshly generated network, so mutating benchmarks don't skew the ones after them
+    public List<BenchmarkResult> runAll() throws Exception {
+        List<BenchmarkResult> results = new ArrayList<>();
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            if (!filter.matcher(entry.getKey()).matches()) {
+                continue;
+            }
+            // Several operations print to the console; keep that I/O out of the measurement
+            PrintStream console = System.out;
+            BenchmarkResult result;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                SocialNetwork2 network = GraphGenerator.barabasiAlbert(users, edgesPerUser, postsPerUser, seed);
+                run(entry.getKey(), entry.getValue(), network, TimeUnit.SECONDS.toNanos(warmupSeconds));
+                result = run(entry.getKey(), entry.getValue(), network, TimeUnit.SECONDS.toNanos(measureSeconds));
+            } finally {
+                System.setOut(console);
+            }
+            results.add(result);
+            print(result);
+        }
+        return results;
+    }
+
+    public BenchmarkResult run(String name, Operation operation, SocialNetwork2 network, long durationNanos) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[][] latencies = new long[threads][];
+        int[] samples = new int[threads];
+        long[] counts = new long[threads];
+        long[] allocated = new long[threads];
+        long[] elapsed = new long[threads];
+        CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                int worker = t;
+                workers.add(executor.submit(() -> {
+                    BenchmarkState state = new BenchmarkState(network, users, seed * 31 + worker);
+                    long[] local = new long[MAX_SAMPLES];
+                    int sampled = 0;
+                    long done = 0;
+                    start.await();
+                    long bytesBefore = threadBean.getCurrentThreadAllocatedBytes();
+                    long began = System.nanoTime();
+                    long deadline = began + durationNanos;
+                    long now = began;
+                    // At least one call, so slow whole-graph operations still report a number
+                    do {
+                        long before = now;
+                        sink = operation.run(state);
+                        now = System.nanoTime();
+                        if (sampled < MAX_SAMPLES) {
+                            local[sampled++] = now - before;
+                        }
+                        done++;
+                    } while (now < deadline);
+                    elapsed[worker] = now - began;
+                    allocated[worker] = threadBean.getCurrentThreadAllocatedBytes() - bytesBefore;
+                    latencies[worker] = local;
+                    samples[worker] = sampled;
+                    counts[worker] = done;
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        BenchmarkResult result = new BenchmarkResult();
+        result.name = name;
+        result.threads = threads;
+        int total = 0;
+        for (int t = 0; t < threads; t++) {
+            result.elapsedNanos = Math.max(result.elapsedNanos, elapsed[t]);
+            result.operations += counts[t];
+            result.allocatedBytes += allocated[t];
+            total += samples[t];
+        }
+        result.latencies = new long[total];
+        result.samples = total;
+        int offset = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, result.latencies, offset, samples[t]);
+            offset += samples[t];
+        }
+        Arrays.sort(result.latencies);
+        return result;
+    }
+
+    static void printHeader() {
+        System.out.printf("%-30s %7s %14s %11s %11s %11s %12s%n",
+                "Benchmark", "Threads", "ops/s", "p50 us", "p99 us", "p99.9 us", "B/op");
+    }
+
+    static void print(BenchmarkResult result) {
+        System.out.printf("%-30s %7d %14.1f %11.2f %11.2f %11.2f %12.1f%n", result.name, result.threads,
+                result.opsPerSecond(), result.percentileMicros(50), result.percentileMicros(99),
+                result.percentileMicros(99.9), result.bytesPerOperation());
+    }
+
+    // Build: javac -d out SocialNetworkDAA.java
+    // Usage: java -cp out SocialNetworkBenchmark [--users N] [--edges M] [--posts P] [--threads T]
+    //        [--warmup S] [--measure S] [--seed X] [--filter REGEX] [--list]
+    public static void main(String[] args) throws Exception {
+        SocialNetworkBenchmark benchmark = new SocialNetworkBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--users":
+                    benchmark.users = Integer.parseInt(args[++i]);
+                    break;
+                case "--edges":
+                    benchmark.edgesPerUser = Integer.parseInt(args[++i]);
+                    break;
+                case "--posts":
+                    benchmark.postsPerUser = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    benchmark.threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    benchmark.warmupSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--measure":
+                    benchmark.measureSeconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    benchmark.seed = Long.parseLong(args[++i]);
+                    break;
+                case "--filter":
+                    benchmark.filter = Pattern.compile(args[++i]);
+                    break;
+                case "--list":
+                    benchmark.operations.keySet().forEach(System.out::println);
+                    return;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        System.out.println("Barabasi-Albert graph: " + benchmark.users + " users, " + benchmark.edgesPerUser
+                + " edges per user, " + benchmark.postsPerUser + " posts per user");
+        printHeader();
+        benchmark.runAll();
+    }
+}